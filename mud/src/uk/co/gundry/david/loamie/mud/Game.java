@@ -31,7 +31,10 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import uk.co.gundry.david.loamie.mud.net.CommandExecution;
+import uk.co.gundry.david.loamie.mud.net.ConnectionMode;
 import uk.co.gundry.david.loamie.mud.net.ServerThread;
+import uk.co.gundry.david.loamie.mud.net.SlowClientPolicy;
 import uk.co.gundry.david.loamie.mud.world.PlayerCharacter;
 import uk.co.gundry.david.loamie.mud.world.World;
 
@@ -77,6 +80,56 @@ public final class Game
 	 * The default value should be overwritten by a value loaded from the server config file.
 	 */
 	private static int maxConnections = 100;
+	/**
+	 * This is how the server services its socket connections.
+	 * The default value should be overwritten by a value loaded from the server config file.
+	 */
+	private static ConnectionMode connectionMode = ConnectionMode.THREAD;
+	/**
+	 * This is the number of selector threads used to service connections in nio mode.
+	 * The default value may be overwritten by a value loaded from the server config file.
+	 */
+	private static int ioThreads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * This is how many bytes of output may be waiting for a client before the slow client policy applies.
+	 * The default value may be overwritten by a value loaded from the server config file.
+	 */
+	private static int outputHighWater = 64 * 1024;
+	/**
+	 * This is what happens to clients which let their output back up past the high-water mark.
+	 * The default value may be overwritten by a value loaded from the server config file.
+	 */
+	private static SlowClientPolicy slowClientPolicy = SlowClientPolicy.DROP;
+	/**
+	 * When compression is enabled, clients are offered MCCP compression of their output.
+	 * The default value may be overwritten by a value loaded from the server config file.
+	 */
+	private static boolean compressionEnabled = true;
+	/**
+	 * These are how many seconds a session may sit idle, and how many seconds a new connection
+	 * has to log in, before it is disconnected. 0 means no limit.
+	 * The default values may be overwritten by values loaded from the server config file.
+	 */
+	private static int idleTimeout = 30 * 60;
+	private static int loginTimeout = 2 * 60;
+	/**
+	 * These are how many commands a second a session may send, and how many it may send at
+	 * once after a pause. A command rate of 0 means no limit.
+	 * The default values may be overwritten by values loaded from the server config file.
+	 */
+	private static int commandRate = 4;
+	private static int commandBurst = 10;
+	/**
+	 * When the world is compact, objects loaded from a save share equal names, descriptions,
+	 * synonym lists and commands instead of each having a copy.
+	 * The default value may be overwritten by a value loaded from the server config file.
+	 */
+	private static boolean compactWorld = true;
+	/**
+	 * This is how the commands sessions receive are carried out.
+	 * The default value may be overwritten by a value loaded from the server config file.
+	 */
+	private static CommandExecution commandExecution = CommandExecution.LOOP;
 	/**
 	 * When the server is running in verbose mode, it echos every command it receives.
 	 */
@@ -101,11 +154,12 @@ public final class Game
 	public static PlayerCharacter createPlayerCharacter(String name, String description)
 	{
 		PlayerCharacter character = new PlayerCharacter(name, description);
-		if (getWorld().getRooms().size() > 1)
-			character.moveTo(getWorld().getRooms().get(1));
+		if (getWorld().getRoom(1) != null)
+			character.moveTo(getWorld().getRoom(1));
 		else
-			character.moveTo(getWorld().getRooms().get(0));
+			character.moveTo(getWorld().getRoom(0));
 		character.setLastRoom(character.getLocation());
+		getWorld().addCharacter(character);
 		return character;
 	}
 	
@@ -177,6 +231,68 @@ public final class Game
 			        	logError("Error: <max-connections> not found\nfalling back to default: " + maxConnections,null);
 			        }
 			        
+			        String mode = readConfigValue(doc, "connection-mode");
+			        if (mode != null)
+			        {
+			        	try {
+			        		connectionMode = ConnectionMode.valueOf(mode.toUpperCase());
+			        	} catch (IllegalArgumentException ex) {
+			        		logError("Error: unknown <connection-mode> " + mode + "\nfalling back to default: " + connectionMode.name().toLowerCase(),null);
+			        	}
+			        }
+			        
+			        String threads = readConfigValue(doc, "io-threads");
+			        if (threads != null)
+			        	ioThreads = Math.max(1, Integer.parseInt(threads));
+			        
+			        String highWater = readConfigValue(doc, "output-high-water");
+			        if (highWater != null)
+			        	outputHighWater = Integer.parseInt(highWater);
+			        
+			        String policy = readConfigValue(doc, "slow-client-policy");
+			        if (policy != null)
+			        {
+			        	try {
+			        		slowClientPolicy = SlowClientPolicy.valueOf(policy.toUpperCase());
+			        	} catch (IllegalArgumentException ex) {
+			        		logError("Error: unknown <slow-client-policy> " + policy + "\nfalling back to default: " + slowClientPolicy.name().toLowerCase(),null);
+			        	}
+			        }
+			        
+			        String compression = readConfigValue(doc, "compression");
+			        if (compression != null)
+			        	compressionEnabled = Boolean.parseBoolean(compression);
+			        
+			        String idle = readConfigValue(doc, "idle-timeout");
+			        if (idle != null)
+			        	idleTimeout = Math.max(0, Integer.parseInt(idle));
+			        
+			        String login = readConfigValue(doc, "login-timeout");
+			        if (login != null)
+			        	loginTimeout = Math.max(0, Integer.parseInt(login));
+			        
+			        String rate = readConfigValue(doc, "command-rate");
+			        if (rate != null)
+			        	commandRate = Math.max(0, Integer.parseInt(rate));
+			        
+			        String burst = readConfigValue(doc, "command-burst");
+			        if (burst != null)
+			        	commandBurst = Math.max(1, Integer.parseInt(burst));
+			        
+			        String execution = readConfigValue(doc, "command-execution");
+			        if (execution != null)
+			        {
+			        	try {
+			        		commandExecution = CommandExecution.valueOf(execution.toUpperCase());
+			        	} catch (IllegalArgumentException ex) {
+			        		logError("Error: unknown <command-execution> " + execution + "\nfalling back to default: " + commandExecution.name().toLowerCase(),null);
+			        	}
+			        }
+			        
+			        String compact = readConfigValue(doc, "compact-world");
+			        if (compact != null)
+			        	compactWorld = Boolean.parseBoolean(compact);
+			        
 			        
 			        NodeList wmessageList = doc.getDocumentElement().getElementsByTagName("welcome-message");
 			        if (wmessageList.getLength() > 0)
@@ -255,6 +371,25 @@ public final class Game
 				System.exit(1);
 	}
 	
+	/**
+	 * Returns the trimmed text of the first element with the given tag in the config document,
+	 * or null if there is no such element. Used for the optional settings, which fall back to
+	 * their defaults silently.
+	 * 
+	 * @param doc - the parsed config file
+	 * @param tag - name of the element to read
+	 */
+	private static String readConfigValue(Document doc, String tag)
+	{
+		NodeList list = doc.getDocumentElement().getElementsByTagName(tag);
+		if (list.getLength() == 0)
+			return null;
+		Node text = ((Element)list.item(0)).getFirstChild();
+		if (text == null)
+			return null;
+		return text.getNodeValue().trim();
+	}
+	
 	/**
 	 * Log an error (to standard error, at the moment).
 	 * 
@@ -364,6 +499,83 @@ public final class Game
 		return maxConnections;
 	}
 
+	/**
+	 * Returns how the server services its socket connections.
+	 */
+	public static ConnectionMode getConnectionMode() {
+		return connectionMode;
+	}
+
+	/**
+	 * Returns the number of selector threads to use in nio mode.
+	 */
+	public static int getIoThreads() {
+		return ioThreads;
+	}
+
+	/**
+	 * Returns how many bytes of output may wait for a client before the slow client policy applies.
+	 */
+	public static int getOutputHighWater() {
+		return outputHighWater;
+	}
+
+	/**
+	 * Returns what happens to clients which let their output back up past the high-water mark.
+	 */
+	public static SlowClientPolicy getSlowClientPolicy() {
+		return slowClientPolicy;
+	}
+
+	/**
+	 * Returns true if clients are to be offered MCCP compression of their output.
+	 */
+	public static boolean isCompressionEnabled() {
+		return compressionEnabled;
+	}
+
+	/**
+	 * Returns how many seconds a session may go without sending a line, or 0 for no limit.
+	 */
+	public static int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Returns how many seconds a new connection has to log in, or 0 for no limit.
+	 */
+	public static int getLoginTimeout() {
+		return loginTimeout;
+	}
+
+	/**
+	 * Returns how many commands a second a session may send, or 0 for no limit.
+	 */
+	public static int getCommandRate() {
+		return commandRate;
+	}
+
+	/**
+	 * Returns how many commands a session may send at once after a pause.
+	 */
+	public static int getCommandBurst() {
+		return commandBurst;
+	}
+
+	/**
+	 * Returns how the commands sessions receive are carried out.
+	 */
+	public static CommandExecution getCommandExecution() {
+		return commandExecution;
+	}
+
+	/**
+	 * Returns true if objects loaded from a save are to share equal values.
+	 */
+	public static boolean isCompactWorld() {
+		return compactWorld;
+	}
+
 	public static boolean isDebug() {
 		return debug;
 	}
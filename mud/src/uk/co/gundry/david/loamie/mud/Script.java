@@ -0,0 +1,186 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud;
+
+import uk.co.gundry.david.loamie.mud.net.Message;
+import uk.co.gundry.david.loamie.mud.world.GameCharacter;
+import uk.co.gundry.david.loamie.mud.world.WorldObject;
+
+/**
+ * A script compiled by the ScriptInterpreter: a fixed list of operations, with their
+ * arguments already picked out, so running it involves no parsing at all. Scripts never
+ * change once compiled.
+ * 
+ * @author David Gundry
+ */
+public final class Script
+{
+	/**
+	 * Stands for the name of the character running the script, in message texts.
+	 */
+	static final String ACTOR = "$_actor";
+	
+	enum Kind { HEAL, MESSAGE, ANNOUNCE, SAY, SHOUT, TAKE, DROP, DELETE_SELF, ERROR }
+	
+	/**
+	 * Which object a heal operation heals.
+	 */
+	enum HealTarget { LOCATION, ROOM, ACTOR, HOLDER, NONE }
+	
+	/**
+	 * One step of a script.
+	 */
+	static final class Operation
+	{
+		final Kind kind;
+		/**
+		 * For the operations which send text, the text split around each ACTOR. For ERROR, the error message.
+		 */
+		final String[] text;
+		final int amount;
+		final HealTarget target;
+		
+		Operation(Kind kind, String[] text, int amount, HealTarget target)
+		{
+			this.kind = kind;
+			this.text = text;
+			this.amount = amount;
+			this.target = target;
+		}
+		
+		/**
+		 * Returns the text with the actor's name filled in.
+		 */
+		String text(GameCharacter actor)
+		{
+			if (text.length == 1)
+				return text[0];
+			StringBuilder builder = new StringBuilder(text[0]);
+			for (int i=1;i<text.length;i++)
+				builder.append(actor.getName()).append(text[i]);
+			return builder.toString();
+		}
+	}
+	
+	private final Operation[] operations;
+	/**
+	 * True if the script shouts, and so is heard beyond the room it runs in.
+	 */
+	private final boolean shouts;
+	
+	Script(Operation[] operations)
+	{
+		this.operations = operations;
+		boolean shouts = false;
+		for (Operation operation: operations)
+			if (operation.kind == Kind.SHOUT)
+				shouts = true;
+		this.shouts = shouts;
+	}
+	
+	/**
+	 * Returns true if running the script can reach other rooms than the actor's, which it does
+	 * when it shouts to the actor's zone.
+	 */
+	public boolean shouts()
+	{
+		return shouts;
+	}
+	
+	/**
+	 * Runs the script.
+	 * 
+	 * @param caller - the object whose script it is
+	 * @param actor - the character who made it run
+	 */
+	public void run(WorldObject caller, GameCharacter actor)
+	{
+		for (Operation operation: operations)
+			perform(operation, caller, actor);
+	}
+	
+	/**
+	 * Performs a single operation.
+	 * 
+	 * @param operation
+	 * @param caller
+	 * @param actor
+	 */
+	static void perform(Operation operation, WorldObject caller, GameCharacter actor)
+	{
+		switch (operation.kind)
+		{
+		case HEAL:
+			heal(operation, caller, actor);
+			break;
+		case MESSAGE:
+			actor.receiveMessage(operation.text(actor));
+			break;
+		case ANNOUNCE:
+			actor.getLocation().receiveMessage(operation.text(actor));
+			break;
+		case SAY:
+			actor.getLocation().receiveMessage(caller.getName() + " says, \"" + operation.text(actor) + "\"");
+			break;
+		case SHOUT:
+			actor.getLocation().receiveShout(Message.fromGame(caller.getName() + " shouts, \"" + operation.text(actor) + "\""));
+			break;
+		case TAKE:
+			// Only from the room, so that one player cannot take it out of another's hands
+			if (caller.getLocation() != actor)
+				caller.moveFrom(actor.getLocation(), actor);
+			break;
+		case DROP:
+			if (caller.getLocation() == actor)
+				caller.moveFrom(actor, actor.getLocation());
+			break;
+		case DELETE_SELF:
+			caller.getLocation().objectExited(caller);
+			break;
+		case ERROR:
+			caller.receiveMessage(operation.text[0]);
+			break;
+		}
+	}
+	
+	private static void heal(Operation operation, WorldObject caller, GameCharacter actor)
+	{
+		switch (operation.target)
+		{
+		case LOCATION:
+			caller.getLocation().heal(operation.amount);
+			break;
+		case ROOM:
+			caller.getLocation().getLocation().heal(operation.amount);
+			break;
+		case ACTOR:
+			actor.heal(operation.amount);
+			break;
+		case HOLDER:
+			if (caller.getLocation().getType() == 0)
+				caller.getLocation().heal(operation.amount);
+			else
+				caller.receiveMessage("What do you want me to heal?");
+			break;
+		case NONE:
+			break;
+		}
+	}
+}
@@ -18,17 +18,20 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package uk.co.gundry.david.loamie.mud;
 
-import java.util.NoSuchElementException;
-import java.util.StringTokenizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
 
 import uk.co.gundry.david.loamie.mud.world.GameCharacter;
 import uk.co.gundry.david.loamie.mud.world.WorldObject;
+import uk.co.gundry.david.loamie.mud.world.command.Command;
 
 /**
  * The script interpreter is the class that is called whenever a script is run,
- * for example when an item with its own script is used. To run a script, create
- * a script interpreter and then call interpret() on it, passing it the required
- * parameters, including the script to run.
+ * for example when an item with its own script is used. Scripts are compiled once,
+ * with compile(), into a Script which can then be run as often as needed without
+ * parsing it again. A single command can also be run directly with interpret().
+ * In messages, $_actor stands for the name of the character running the script.
  * 
  * <h2>Commands that are recognised:</h2>
  * <ul><li>heal [value] [room/holder/actor]</li>
@@ -46,90 +49,103 @@ import uk.co.gundry.david.loamie.mud.world.WorldObject;
 public class ScriptInterpreter {
 
 	/**
-	 * Called with the command string, this figures out what the command means and does it.
+	 * Compiles a script: steps separated by "; ", each of them one of the commands above.
+	 * Steps which are not understood are left out.
+	 * 
+	 * @param script
+	 */
+	public static Script compile(String script)
+	{
+		String[] steps = script.split("; ");
+		List<Script.Operation> operations = new ArrayList<Script.Operation>(steps.length);
+		for (String step: steps)
+		{
+			Script.Operation operation = compile(Command.parse(step));
+			if (operation != null)
+				operations.add(operation);
+		}
+		return new Script(operations.toArray(new Script.Operation[operations.size()]));
+	}
+	
+	/**
+	 * Called with the command, this figures out what the command means and does it.
 	 * 
 	 * @parm command
 	 * @param caller
 	 * @param actor
 	 */
-	public int interpret(String command, WorldObject caller, GameCharacter actor)
+	public int interpret(Command command, WorldObject caller, GameCharacter actor)
 	{
-		if (command.toLowerCase().startsWith("heal ")){
-			command = command.substring(5);
-			commandHeal(command, caller, actor);
-			return 1;
-		} else if (command.toLowerCase().startsWith("message ")){
-			command = command.substring(8);
-			actor.receiveMessage(command);
-			return 1;
-		} else if (command.toLowerCase().startsWith("announce ")){
-			command = command.substring(9);
-			actor.getLocation().receiveMessage(command);
-			return 1;
-		} else if (command.toLowerCase().startsWith("say ")){
-			command = command.substring(4);
-			actor.getLocation().receiveMessage(caller.getName() + " says, \"" + command + "\"");
-			return 1;
-		}else if (command.toLowerCase().startsWith("shout ")){
-			command = command.substring(6);
-			actor.getLocation().receiveMessage(caller.getName() + " shouts, \"" + command + "\"");
-			return 1;
-		} else if (command.toLowerCase().equals("pick up") || command.toLowerCase().equals("get") || command.toLowerCase().equals("grab") || command.toLowerCase().equals("take")){
-			if (caller.getLocation() != actor)
-				caller.moveTo(actor);
-			return 1;
-		} else if (command.toLowerCase().equals("drop") || command.toLowerCase().equals("put down") || command.toLowerCase().equals("lose")){
-			if (caller.getLocation() == actor)
-				caller.moveTo(actor.getLocation());
-			return 1;
-		} else if (command.toLowerCase().equals("delete self")){
-			caller.getLocation().objectExited(caller);
-			return 1;
-		} else
+		Script.Operation operation = compile(command);
+		if (operation == null)
 			return 0;
+		Script.perform(operation, caller, actor);
+		return 1;
 	}
 	
 	/**
-	 * This interprets all commands starting with 'heal', and does them.
+	 * Figures out what a single command means. Returns null if it is not understood.
 	 * 
 	 * @param command
-	 * @param caller
-	 * @param actor
 	 */
-	void commandHeal(String command, WorldObject caller, GameCharacter actor){
-		StringTokenizer st = new StringTokenizer(command);
-		String valueString;
-		try {
-			valueString = st.nextToken();
-		} catch (NoSuchElementException ex) {
-			caller.receiveMessage("Wrong syntax!");
-			return;	
-		}
+	static Script.Operation compile(Command command)
+	{
+		if (command.startsWith("heal ")){
+			return compileHeal(command);
+		} else if (command.startsWith("message ")){
+			return text(Script.Kind.MESSAGE, command);
+		} else if (command.startsWith("announce ")){
+			return text(Script.Kind.ANNOUNCE, command);
+		} else if (command.startsWith("say ")){
+			return text(Script.Kind.SAY, command);
+		}else if (command.startsWith("shout ")){
+			return text(Script.Kind.SHOUT, command);
+		} else if (command.is("pick up") || command.is("get") || command.is("grab") || command.is("take")){
+			return new Script.Operation(Script.Kind.TAKE, null, 0, null);
+		} else if (command.is("drop") || command.is("put down") || command.is("lose")){
+			return new Script.Operation(Script.Kind.DROP, null, 0, null);
+		} else if (command.is("delete self")){
+			return new Script.Operation(Script.Kind.DELETE_SELF, null, 0, null);
+		} else
+			return null;
+	}
+	
+	private static Script.Operation text(Script.Kind kind, Command command)
+	{
+		return new Script.Operation(kind, command.getArgument().split(Pattern.quote(Script.ACTOR), -1), 0, null);
+	}
+	
+	private static Script.Operation error(String message)
+	{
+		return new Script.Operation(Script.Kind.ERROR, new String[] {message}, 0, null);
+	}
+	
+	/**
+	 * This interprets all commands starting with 'heal'.
+	 * 
+	 * @param command
+	 */
+	static Script.Operation compileHeal(Command command){
+		if (command.getWordCount() < 2)
+			return error("Wrong syntax!");
 		int value;
 		try {
-			value = Integer.parseInt(valueString);
+			value = Integer.parseInt(command.getWord(1));
 		} catch (NumberFormatException ex) {
-			caller.receiveMessage("That is not a valid amount");
-			return;
+			return error("That is not a valid amount");
 		}
-		String targetName = "";
-		try {
-			targetName = st.nextToken();
-		} catch (NoSuchElementException ex) {
-			caller.getLocation().heal(value);
-		}
-		
-		if (targetName.equals("room"))
-			caller.getLocation().getLocation().heal(value);
-		else if (targetName.equals("actor"))
-			actor.heal(value);
-		else if (targetName.equals("holder"))
-			if (caller.getLocation().getType() == 0)
-				caller.getLocation().heal(value);	
-
+		Script.HealTarget target;
+		if (command.getWordCount() < 3)
+			target = Script.HealTarget.LOCATION;
+		else if (command.getWord(2).equals("room"))
+			target = Script.HealTarget.ROOM;
+		else if (command.getWord(2).equals("actor"))
+			target = Script.HealTarget.ACTOR;
+		else if (command.getWord(2).equals("holder"))
+			target = Script.HealTarget.HOLDER;
 		else
-			caller.receiveMessage("What do you want me to heal?");
-
+			target = Script.HealTarget.NONE;
+		return new Script.Operation(Script.Kind.HEAL, null, value, target);
 	}
 	
 }
@@ -0,0 +1,45 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.net;
+
+/**
+ * The ways in which the server can carry out the commands its sessions receive.
+ * 
+ * @author David Gundry
+ */
+public enum CommandExecution
+{
+	/**
+	 * Each session carries out its own commands on whichever thread read them. Sessions
+	 * change the world at the same time as each other, without any locking.
+	 */
+	DIRECT,
+	/**
+	 * Sessions queue their commands for a single game loop thread, which is the only thread
+	 * to change the world. Commands are carried out in the order they arrive.
+	 */
+	LOOP,
+	/**
+	 * As LOOP, but the game loop hands commands which stay inside one room to a pool of
+	 * threads, so that commands in different rooms are carried out at the same time. Commands
+	 * which reach outside a room are carried out by the loop alone once the rooms are done.
+	 */
+	PARALLEL;
+}
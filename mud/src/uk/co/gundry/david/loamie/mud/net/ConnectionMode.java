@@ -0,0 +1,43 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.net;
+
+/**
+ * The ways in which the server can service its socket connections.
+ * 
+ * @author David Gundry
+ */
+public enum ConnectionMode
+{
+	/**
+	 * Each connection gets its own thread, which blocks while reading lines from the socket.
+	 */
+	THREAD,
+	/**
+	 * Each connection gets its own virtual thread. Reads still block, but a blocked virtual
+	 * thread does not hold on to an operating system thread. Needs Java 21 or later; on
+	 * older runtimes the server falls back to thread mode.
+	 */
+	VIRTUAL,
+	/**
+	 * Connections are non-blocking and are serviced by a small pool of selector threads.
+	 */
+	NIO;
+}
@@ -0,0 +1,241 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.net;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.LockSupport;
+
+import uk.co.gundry.david.loamie.mud.Game;
+import uk.co.gundry.david.loamie.mud.world.Room;
+
+/**
+ * The one thread which changes the world when commands are carried out in loop mode.
+ * Network threads queue work for it on a lock-free queue and go straight back to their
+ * sockets; the loop takes the work off in batches and does it in the order it arrived.
+ * Because nothing else touches the world, nothing in it needs locking.
+ * 
+ * Output sent while a batch is being done is flushed once at the end of the batch, so
+ * a session which is sent many messages by the commands in one batch is written to once.
+ * 
+ * In parallel mode each batch is done in two phases. First the tasks which stay inside one
+ * room are sorted by room, and the rooms are handed to a fork-join pool, so that players in
+ * different rooms are served by different cores. Each room's tasks are still done one at a
+ * time, in the order they arrived. Then the loop does the rest of the batch by itself: the
+ * tasks which move characters between rooms, reach players elsewhere, or change the world
+ * as a whole. Nothing else is running while it does, so these need no locking either. A
+ * session which has a task held back for the second phase has all its later tasks in the
+ * batch held back too, so its commands are never done out of order.
+ * 
+ * @author David Gundry
+ */
+final class GameLoop extends Thread
+{
+	/**
+	 * Most tasks done in one batch before output is flushed.
+	 */
+	private static final int MAX_BATCH = 256;
+	
+	/**
+	 * A task which says which room it stays inside, so that in parallel mode it can be done
+	 * at the same time as tasks in other rooms.
+	 */
+	interface RoomTask extends Runnable
+	{
+		/**
+		 * Returns the session the task came from.
+		 */
+		Object getSession();
+		
+		/**
+		 * Returns the room the task stays inside, or null if it might reach outside it.
+		 * Called on the game loop before the batch the task is in is started.
+		 */
+		Room getRoom();
+	}
+	
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	
+	/**
+	 * The threads which do the tasks for each room in parallel mode. Null otherwise.
+	 */
+	private final ForkJoinPool rooms;
+	
+	/**
+	 * @param parallel - true to do tasks in different rooms at the same time
+	 */
+	GameLoop(boolean parallel)
+	{
+		super("GameLoop");
+		setDaemon(true);
+		rooms = parallel ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : null;
+	}
+	
+	/**
+	 * Queues a task to be done on the game loop. May be called from any thread.
+	 * 
+	 * @param task
+	 */
+	void submit(Runnable task)
+	{
+		tasks.offer(task);
+		LockSupport.unpark(this);
+	}
+	
+	/**
+	 * Returns true if the current thread is the game loop. A task which changes the world
+	 * outside its room from one of the pool's threads is queued for the next batch instead.
+	 */
+	boolean isCurrent()
+	{
+		return Thread.currentThread() == this;
+	}
+	
+	/**
+	 * Returns the number of rooms whose tasks may be done at once, or 1 if they are not.
+	 */
+	int getParallelism()
+	{
+		return (rooms == null) ? 1 : rooms.getParallelism();
+	}
+	
+	@Override
+	public void run()
+	{
+		List<Runnable> batch = new ArrayList<Runnable>();
+		while (true)
+		{
+			Runnable task = tasks.poll();
+			if (task == null)
+			{
+				// Woken by submit; a task queued before we parked leaves a permit behind
+				LockSupport.park(this);
+				continue;
+			}
+			do {
+				batch.add(task);
+				if (batch.size() == MAX_BATCH)
+					break;
+				task = tasks.poll();
+			} while (task != null);
+			
+			if (rooms == null)
+				runTasks(batch);
+			else
+				runByRoom(batch);
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * Does a batch of tasks in order on the current thread, and flushes their output.
+	 * 
+	 * @param batch
+	 */
+	private void runTasks(List<Runnable> batch)
+	{
+		boolean batched = SocketThread.beginBatch();
+		try
+		{
+			for (Runnable task: batch)
+				runTask(task);
+		} finally {
+			if (batched)
+				SocketThread.endBatch();
+		}
+	}
+	
+	/**
+	 * Does the tasks which stay inside a room on the pool, a room to a thread, then the rest
+	 * of the batch on the loop.
+	 * 
+	 * @param batch
+	 */
+	private void runByRoom(List<Runnable> batch)
+	{
+		Map<Room, List<Runnable>> byRoom = new LinkedHashMap<Room, List<Runnable>>();
+		List<Runnable> held = new ArrayList<Runnable>();
+		Set<Object> heldSessions = new HashSet<Object>();
+		for (Runnable task: batch)
+		{
+			Room room = null;
+			if (task instanceof RoomTask)
+			{
+				RoomTask roomTask = (RoomTask) task;
+				if (!heldSessions.contains(roomTask.getSession()))
+					room = roomTask.getRoom();
+				if (room == null)
+					heldSessions.add(roomTask.getSession());
+			}
+			if (room == null)
+			{
+				held.add(task);
+				continue;
+			}
+			List<Runnable> inRoom = byRoom.get(room);
+			if (inRoom == null)
+			{
+				inRoom = new ArrayList<Runnable>();
+				byRoom.put(room, inRoom);
+			}
+			inRoom.add(task);
+		}
+		
+		if (byRoom.size() == 1)
+			runTasks(byRoom.values().iterator().next());
+		else if (byRoom.size() > 1)
+		{
+			List<Callable<Void>> work = new ArrayList<Callable<Void>>(byRoom.size());
+			for (final List<Runnable> inRoom: byRoom.values())
+				work.add(new Callable<Void>() {
+					public Void call()
+					{
+						runTasks(inRoom);
+						return null;
+					}
+				});
+			rooms.invokeAll(work);
+		}
+		
+		if (!held.isEmpty())
+			runTasks(held);
+	}
+	
+	/**
+	 * Does one task. A task which throws does not stop the loop.
+	 */
+	private void runTask(Runnable task)
+	{
+		try
+		{
+			task.run();
+		} catch (RuntimeException e) {
+			Game.logError("Error in the game loop:", e);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Something said or done in the world, on its way to the players who see it. However many
+ * players that is, it is laid out and encoded once, the first time it is sent, and every
+ * session then queues the same read-only bytes.
+ * 
+ * Messages go out on channels: the one for a room reaches everyone in it, and the one for a
+ * zone every room in the zone. Server broadcasts are sent the same way to every session.
+ * 
+ * @author David Gundry
+ */
+public final class Message
+{
+	private static final String GAME_INDENT = "          ";
+	private static final String PLAYER_INDENT = "                    ";
+	
+	private final String text;
+	private final boolean fromPlayer;
+	/**
+	 * Put before each line as the player sees it, or null to send the text as it is.
+	 */
+	private final String indent;
+	private final boolean chatter;
+	private volatile ByteBuffer encoded;
+	
+	private Message(String text, boolean fromPlayer, String indent, boolean chatter)
+	{
+		this.text = text;
+		this.fromPlayer = fromPlayer;
+		this.indent = indent;
+		this.chatter = chatter;
+	}
+	
+	/**
+	 * Returns a message from the game itself, such as someone arriving. It is never dropped
+	 * for a slow client.
+	 * 
+	 * @param text
+	 */
+	public static Message fromGame(String text)
+	{
+		return new Message(text, false, GAME_INDENT, false);
+	}
+	
+	/**
+	 * Returns a message from a player, such as something they say. It is chatter, which a
+	 * client behind reading its output may miss.
+	 * 
+	 * @param text
+	 */
+	public static Message fromPlayer(String text)
+	{
+		return new Message(text, true, PLAYER_INDENT, true);
+	}
+	
+	/**
+	 * Returns a message from the server to every session, which is sent as it is.
+	 * 
+	 * @param text
+	 * @param chatter - true if clients which are behind reading their output may miss it
+	 */
+	public static Message fromServer(String text, boolean chatter)
+	{
+		return new Message(text, false, null, chatter);
+	}
+	
+	public String getText()
+	{
+		return text;
+	}
+	
+	/**
+	 * Returns true if a player sent the message, rather than the game.
+	 */
+	public boolean isFromPlayer()
+	{
+		return fromPlayer;
+	}
+	
+	/**
+	 * Queues the message on a session.
+	 * 
+	 * @param session
+	 */
+	public void sendTo(SocketThread session)
+	{
+		ByteBuffer bytes = getEncoded();
+		if (bytes.hasRemaining())
+			session.sendEncoded(bytes, chatter);
+	}
+	
+	/**
+	 * Lays out and encodes the message, if that has not been done. Two threads sending it at
+	 * once may both do it, but they get the same bytes.
+	 */
+	private ByteBuffer getEncoded()
+	{
+		ByteBuffer bytes = encoded;
+		if (bytes == null)
+		{
+			if (indent == null)
+				bytes = ByteBuffer.wrap(SocketThread.encode(text));
+			else {
+				StringBuilder lines = new StringBuilder();
+				for (String line: text.split("[\\r\\n]+"))
+					lines.append(indent).append(line.replace("_", " ")).append('\n');
+				// Text with no lines in it has nothing to send
+				bytes = (lines.length() == 0) ? ByteBuffer.allocate(0) : ByteBuffer.wrap(SocketThread.encode(lines.toString()));
+			}
+			bytes = bytes.asReadOnlyBuffer();
+			encoded = bytes;
+		}
+		return bytes;
+	}
+}
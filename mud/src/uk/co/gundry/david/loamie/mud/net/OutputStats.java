@@ -0,0 +1,107 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how often clients fall behind reading their output or send commands too quickly,
+ * what was done about it, and how much output compression saves.
+ * 
+ * @author David Gundry
+ */
+public final class OutputStats
+{
+	private final AtomicLong highWaterReached = new AtomicLong();
+	private final AtomicLong messagesDropped = new AtomicLong();
+	private final AtomicLong slowClientsDisconnected = new AtomicLong();
+	private final AtomicLong sessionsThrottled = new AtomicLong();
+	private final AtomicLong commandsDropped = new AtomicLong();
+	private final AtomicLong compressedIn = new AtomicLong();
+	private final AtomicLong compressedOut = new AtomicLong();
+	private final AtomicLong compressionNanos = new AtomicLong();
+	
+	/**
+	 * Called when a session's output queue goes past the high-water mark.
+	 */
+	void highWaterReached()
+	{
+		highWaterReached.incrementAndGet();
+	}
+	
+	/**
+	 * Called when chatter is thrown away because its session's queue is past the high-water mark.
+	 */
+	void messageDropped()
+	{
+		messagesDropped.incrementAndGet();
+	}
+	
+	/**
+	 * Called when a session is disconnected for not reading its output.
+	 */
+	void slowClientDisconnected()
+	{
+		slowClientsDisconnected.incrementAndGet();
+	}
+	
+	/**
+	 * Called when a session starts sending commands faster than it is allowed to.
+	 */
+	void sessionThrottled()
+	{
+		sessionsThrottled.incrementAndGet();
+	}
+	
+	/**
+	 * Called when a command is thrown away because the session sent too many too quickly.
+	 */
+	void commandDropped()
+	{
+		commandsDropped.incrementAndGet();
+	}
+	
+	/**
+	 * Called when a session's output has been compressed.
+	 * 
+	 * @param bytesIn - bytes before compression
+	 * @param bytesOut - bytes after compression
+	 * @param nanos - time taken
+	 */
+	void compressed(int bytesIn, int bytesOut, long nanos)
+	{
+		compressedIn.addAndGet(bytesIn);
+		compressedOut.addAndGet(bytesOut);
+		compressionNanos.addAndGet(nanos);
+	}
+	
+	/**
+	 * Returns the statistics as text for an admin.
+	 */
+	public String describe()
+	{
+		return "Output queues past the high-water mark: " + highWaterReached.get()
+			+ "\nMessages dropped for slow clients: " + messagesDropped.get()
+			+ "\nSlow clients disconnected: " + slowClientsDisconnected.get()
+			+ "\nSessions sending commands too quickly: " + sessionsThrottled.get()
+			+ "\nCommands dropped for sending too quickly: " + commandsDropped.get()
+			+ "\nCompressed output: " + StreamCompressor.describe(compressedIn.get(), compressedOut.get(), compressionNanos.get());
+	}
+}
@@ -0,0 +1,238 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import uk.co.gundry.david.loamie.mud.Game;
+
+/**
+ * Services many non-blocking socket connections from a single thread. When the server runs
+ * in nio mode, each SocketThread is attached to one of these rather than being started as
+ * a thread of its own.
+ * 
+ * All reads, writes and closes of a connection's channel happen on its selector thread.
+ * Other threads hand work over through the registration and flush queues.
+ * 
+ * @author David Gundry
+ */
+final class SelectorThread extends Thread
+{
+	private final Selector selector;
+	
+	/**
+	 * Connections waiting to be registered with the selector.
+	 */
+	private final Queue<SocketThread> registrations = new ConcurrentLinkedQueue<SocketThread>();
+	
+	/**
+	 * Connections which have had output queued for them since the last select.
+	 */
+	private final Queue<SocketThread> flushes = new ConcurrentLinkedQueue<SocketThread>();
+	
+	/**
+	 * Reads only ever happen on this thread, so one buffer serves every connection.
+	 */
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192);
+	
+	/**
+	 * Connections holding back lines because they were sent too quickly. Only this thread touches it.
+	 */
+	private final List<SocketThread> throttled = new ArrayList<SocketThread>();
+	
+	SelectorThread(int number) throws IOException
+	{
+		super("SelectorThread-" + number);
+		selector = Selector.open();
+	}
+	
+	/**
+	 * Hands a newly accepted connection over to this selector thread.
+	 * 
+	 * @param connection
+	 */
+	void register(SocketThread connection)
+	{
+		registrations.add(connection);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Asks this selector thread to write out whatever is in the connection's write queue,
+	 * or to disconnect it if it has been abandoned. Safe to call from any thread.
+	 * 
+	 * @param connection
+	 */
+	void flush(SocketThread connection)
+	{
+		flushes.add(connection);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Has this selector thread handle the lines the connection is holding back, as fast as
+	 * it is allowed to. Only called on this thread.
+	 * 
+	 * @param connection
+	 */
+	void throttled(SocketThread connection)
+	{
+		throttled.add(connection);
+	}
+	
+	/**
+	 * Waits for connections to become readable or writable and services them, and handles
+	 * lines held back from throttled connections as they fall due.
+	 */
+	@Override
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{
+				long wait = handlePendingLines();
+				if (wait == 0)
+					selector.select();
+				else
+					selector.select(Math.max(1, wait / 1000000));
+			} catch (IOException e) {
+				Game.logError("Selector failed, terminating.", e);
+				System.exit(-1);
+			}
+			
+			SocketThread connection;
+			while ((connection = registrations.poll()) != null)
+				accept(connection);
+			while ((connection = flushes.poll()) != null)
+			{
+				if (connection.isAbandoned())
+					connection.connectionLost(new IOException("Client is not reading its output."));
+				else if (connection.getKey() != null)
+					service(connection, SelectionKey.OP_WRITE);
+			}
+			
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext())
+			{
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid())
+					service((SocketThread) key.attachment(), key.readyOps());
+			}
+		}
+	}
+	
+	/**
+	 * Handles those held back lines which are due. Returns the nanoseconds until more are
+	 * due, or 0 if there are none held back.
+	 */
+	private long handlePendingLines()
+	{
+		long wait = 0;
+		Iterator<SocketThread> connections = throttled.iterator();
+		while (connections.hasNext())
+		{
+			long nanos = connections.next().handlePendingLines();
+			if (nanos == 0)
+				connections.remove();
+			else if (wait == 0 || nanos < wait)
+				wait = nanos;
+		}
+		return wait;
+	}
+	
+	/**
+	 * Registers the connection's channel with the selector, then writes anything that was
+	 * queued for it before registration.
+	 * 
+	 * @param connection
+	 */
+	private void accept(SocketThread connection)
+	{
+		try
+		{
+			SocketChannel channel = connection.getChannel();
+			channel.configureBlocking(false);
+			connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+		} catch (IOException e) {
+			connection.connectionLost(e);
+			return;
+		}
+		service(connection, SelectionKey.OP_WRITE);
+	}
+	
+	/**
+	 * Performs the reads and writes a connection is ready for.
+	 * 
+	 * @param connection
+	 * @param readyOps - the operations the channel is ready for
+	 */
+	private void service(SocketThread connection, int readyOps)
+	{
+		try
+		{
+			if ((readyOps & SelectionKey.OP_READ) != 0)
+				read(connection);
+			if ((readyOps & SelectionKey.OP_WRITE) != 0 && connection.getKey().isValid())
+				write(connection);
+		} catch (IOException e) {
+			connection.connectionLost(e);
+		}
+	}
+	
+	private void read(SocketThread connection) throws IOException
+	{
+		readBuffer.clear();
+		if (connection.getChannel().read(readBuffer) < 0)
+			throw new IOException("Stream closed unexpectedly. The client probably disconnected without quitting first.");
+		readBuffer.flip();
+		connection.bytesReceived(readBuffer);
+	}
+	
+	/**
+	 * Writes as much of the connection's queued output as the socket will take without blocking,
+	 * using gathering writes. If some is left over, waits for the socket to become writable again.
+	 * Once everything has gone, a connection which is closing is closed.
+	 * 
+	 * @param connection
+	 */
+	private void write(SocketThread connection) throws IOException
+	{
+		SelectionKey key = connection.getKey();
+		if (!connection.writeQueued())
+		{
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+		if (connection.isClosing())
+			connection.closeChannel();
+	}
+}
@@ -22,15 +22,26 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.reflect.Method;
 import java.net.BindException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -48,12 +59,71 @@ import uk.co.gundry.david.loamie.mud.Game;
 public final class ServerThread extends Thread
 {	
 
+	/**
+	 * Sent straight down the socket to connections turned away because the server is full.
+	 */
+	private static final byte[] SERVER_FULL = SocketThread.encode("Sorry, the server is full.\nYou will now be disconnected.");
+
 	private int port;
 	
 	/**
-	 * ArrayList of socket connections to the server
+	 * Number of connections admitted and not yet disconnected. Kept separately from the
+	 * registry of sessions so that the accept loop can check it before creating anything.
+	 */
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	
+	/**
+	 * Number of sessions with a character logged in.
+	 */
+	private final AtomicInteger loginCount = new AtomicInteger();
+	
+	/**
+	 * Socket connections to the server, by session id. Safe to iterate while sessions come and go.
+	 */
+	private transient Map<Long, SocketThread> sessions = new ConcurrentHashMap<Long, SocketThread>();
+	
+	/**
+	 * In virtual mode, the Thread.Builder that makes the virtual threads sessions run on, and
+	 * its unstarted(Runnable) method. These are looked up reflectively so that the server
+	 * still builds and runs on releases before Java 21.
+	 */
+	private Object virtualThreadBuilder;
+	private Method unstartedMethod;
+	
+	/**
+	 * Runs the writer tasks of sessions with blocking channels, so that nobody sending
+	 * output ever blocks on a client that is slow to read it. The pool grows as needed,
+	 * so clients which stop reading cannot hold up the others.
 	 */
-	private transient List<SocketThread> threads = Collections.synchronizedList(new ArrayList<SocketThread>());		
+	private final ExecutorService platformWriters = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		public Thread newThread(Runnable task)
+		{
+			return new Thread(task, "WriterThread");
+		}
+	});
+	private final Executor writers = new Executor()
+	{
+		public void execute(Runnable task)
+		{
+			if (virtualThreadBuilder != null)
+				newThread(task, "WriterThread").start();
+			else
+				platformWriters.execute(task);
+		}
+	};
+	
+	private final OutputStats outputStats = new OutputStats();
+	
+	/**
+	 * Disconnects sessions which sit idle, or take too long to log in.
+	 */
+	private final TimerWheel reaper = new TimerWheel();
+	
+	/**
+	 * In loop and parallel modes, the thread which carries out every session's commands. Null otherwise.
+	 */
+	private GameLoop gameLoop;
 	
 	/**
 	 * Creates a server on the given port.
@@ -65,10 +135,15 @@ public final class ServerThread extends Thread
 		this.port = port;
 	}
 	
-	public List<SocketThread> getThreads()
+	/**
+	 * Returns all the sessions currently connected. The collection is live, and may be
+	 * iterated without locking while sessions connect and disconnect.
+	 */
+	public Collection<SocketThread> getSessions()
 	{
-		return threads;
+		return sessions.values();
 	}
+	
 		
 	/**
 	 * Listens on the server's port, waits for clients to connect
@@ -79,12 +154,123 @@ public final class ServerThread extends Thread
 	{
 		Game.logMessage("Starting server on port " +port + "...");
 		
-		ServerSocket serverSocket = null;
+		if (Game.getConnectionMode() == ConnectionMode.VIRTUAL)
+			findVirtualThreadBuilder();
+		reaper.start();
+		if (Game.getCommandExecution() == CommandExecution.LOOP)
+		{
+			gameLoop = new GameLoop(false);
+			gameLoop.start();
+			Game.logMessage("Carrying out commands on the game loop.");
+		} else if (Game.getCommandExecution() == CommandExecution.PARALLEL)
+		{
+			gameLoop = new GameLoop(true);
+			gameLoop.start();
+			Game.logMessage("Carrying out commands on the game loop, with " + gameLoop.getParallelism() + " threads for rooms.");
+		}
+		acceptConnections();
+	}
+	
+	/**
+	 * Looks up the virtual thread builder, falling back to platform threads if this
+	 * runtime does not have virtual threads.
+	 */
+	private void findVirtualThreadBuilder()
+	{
+		try
+		{
+			virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			unstartedMethod = builderClass.getMethod("unstarted", Runnable.class);
+			Game.logMessage("Running sessions on virtual threads.");
+		} catch (Exception e) {
+			Game.logError("Virtual threads are not available on this Java runtime. Falling back to thread mode.", null);
+		}
+	}
+	
+	/**
+	 * Makes a thread to run the given task, a virtual one if possible.
+	 * 
+	 * @param task
+	 * @param name - name for the thread, if it is a platform thread
+	 */
+	private Thread newThread(Runnable task, String name)
+	{
+		if (virtualThreadBuilder != null)
+		{
+			try
+			{
+				return (Thread) unstartedMethod.invoke(virtualThreadBuilder, task);
+			} catch (Exception e) {
+				Game.logError("Failed to create a virtual thread, using a platform thread instead.", e);
+			}
+		}
+		return new Thread(task, name);
+	}
+	
+	/**
+	 * Returns the executor that runs writer tasks for sessions with blocking channels. In
+	 * virtual mode each task gets a virtual thread of its own; otherwise they share a pool.
+	 */
+	Executor getWriters()
+	{
+		return writers;
+	}
+	
+	/**
+	 * Returns the timer wheel which times out idle sessions.
+	 */
+	TimerWheel getReaper()
+	{
+		return reaper;
+	}
+	
+	/**
+	 * Does something which changes the world: on the game loop in loop and parallel modes,
+	 * unless this is the game loop already, and straight away otherwise.
+	 * 
+	 * @param task
+	 */
+	void execute(Runnable task)
+	{
+		if (gameLoop == null || gameLoop.isCurrent())
+			task.run();
+		else
+			gameLoop.submit(task);
+	}
+	
+	/**
+	 * Returns the counts of clients falling behind reading their output.
+	 */
+	public OutputStats getOutputStats()
+	{
+		return outputStats;
+	}
+	
+	/**
+	 * Accepts connections. In nio mode they are handed out in turn to a pool of selector
+	 * threads; otherwise a thread is started for each.
+	 */
+	private void acceptConnections()
+	{
+		ServerSocketChannel serverChannel = null;
+		SelectorThread[] selectorThreads = null;
 		boolean listening = true;
 		
 		try
 		{
-			serverSocket = new ServerSocket(port);
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().bind(new InetSocketAddress(port));
+			if (Game.getConnectionMode() == ConnectionMode.NIO)
+			{
+				selectorThreads = new SelectorThread[Game.getIoThreads()];
+				for (int i=0;i<selectorThreads.length;i++)
+				{
+					selectorThreads[i] = new SelectorThread(i);
+					selectorThreads[i].start();
+				}
+				Game.logMessage("Using " + selectorThreads.length + " selector threads.");
+			}
 		} catch (BindException e) {
 			Game.logError("Unable to bind to port " + port + ". Make sure no other programs (or instances of this program) are using that port.",e);
 			System.exit(-1);
@@ -95,18 +281,18 @@ public final class ServerThread extends Thread
 		
 		try
 		{
+			int next = 0;
 			while (listening)
 			{
-				SocketThread thread = new SocketThread(serverSocket.accept(), this);
-				threads.add(thread);
-				thread.init();		
-				thread.start();
-				
-				if (threads.size() > Game.getMaxConnections())
+				SocketChannel channel = serverChannel.accept();
+				if (!reserveConnection())
+					turnAway(channel);
+				else if (selectorThreads == null)
+					admit(new SocketThread(channel, this));
+				else
 				{
-			    	thread.sendMessage("Sorry, the server is full.\nYou will now be disconnected.");
-			    	thread.logMessage("Server full.");
-			    	thread.disconnect();
+					admit(new SocketThread(channel, this, selectorThreads[next]));
+					next = (next + 1) % selectorThreads.length;
 				}
 			}
 		} catch (IOException e) {
@@ -116,7 +302,7 @@ public final class ServerThread extends Thread
 		
 		try
 		{
-			serverSocket.close();
+			serverChannel.close();
 		} catch (IOException e) {
 			Game.logError("Exception occurred while closing socket.",e);
 			System.exit(-1);
@@ -124,30 +310,97 @@ public final class ServerThread extends Thread
 	}
 	
 	/**
-	 * Sends a message to all the connected clients.
+	 * Takes a place for a newly accepted connection. Returns false, taking nothing,
+	 * if the server is already full.
+	 */
+	private boolean reserveConnection()
+	{
+		if (connectionCount.incrementAndGet() <= Game.getMaxConnections())
+			return true;
+		connectionCount.decrementAndGet();
+		return false;
+	}
+	
+	/**
+	 * Adds a newly accepted connection, which has had its place reserved, to the set
+	 * and gets it going.
+	 * 
+	 * @param thread
+	 */
+	private void admit(SocketThread thread)
+	{
+		sessions.put(thread.getId(), thread);
+		thread.init();
+		if (thread.isBlocking())
+			newThread(thread, "NetThread").start();
+	}
+	
+	/**
+	 * Tells a connection the server is full and closes it, without setting up a session for it.
+	 * 
+	 * @param channel
+	 */
+	private void turnAway(SocketChannel channel)
+	{
+		Game.logMessage("Server full. Turned away " + channel.socket().getInetAddress().getHostAddress());
+		try
+		{
+			channel.write(ByteBuffer.wrap(SERVER_FULL));
+		} catch (IOException e) {
+			// They will find out when the connection closes
+		}
+		try { channel.close(); } catch (IOException e) { e.printStackTrace(); }
+	}
+	
+	/**
+	 * Sends a message to all the connected clients. It is sent as chatter, so clients
+	 * which are behind reading their output may miss it.
 	 * 
 	 * @param message  Message object to broadcast
 	 */
 	public void sendMessage(String message, SocketThread sender)
 	{
-		synchronized(threads)
+		broadcast(message, true);
+	}
+	
+	/**
+	 * Sends a message to all the connected clients. The message is encoded once, and every
+	 * session queues the same read-only bytes.
+	 * 
+	 * @param message
+	 * @param chatter - true if clients which are behind reading their output may miss it
+	 */
+	private void broadcast(String message, boolean chatter)
+	{
+		Message encoded = Message.fromServer(message, chatter);
+		for (SocketThread thread: sessions.values())
 		{
-			for (SocketThread thread: threads)
-			{
-				thread.sendMessage(message);
-			}
+			encoded.sendTo(thread);
 		}
 	}
 	
+	/**
+	 * Called when a session logs in to a character.
+	 * 
+	 * @param thread  Session that just logged in
+	 */
+	void threadLoggedIn(SocketThread thread)
+	{
+		loginCount.incrementAndGet();
+	}
+	
 	/**
 	 * Called when a thread has been disconnected, whether voluntarily or not.
-	 * Removes the thread from the set.
+	 * Removes the thread from the registry.
 	 * 
 	 * @param thread  Thread that just disconnected
 	 */
 	void threadDisconnected(SocketThread thread)
 	{
-		threads.remove(thread);
+		if (thread.loggedIn())
+			loginCount.decrementAndGet();
+		sessions.remove(thread.getId());
+		connectionCount.decrementAndGet();
 	}
 	
 	/**
@@ -255,8 +508,7 @@ public final class ServerThread extends Thread
 		FileOutputStream fos = null;
 		PrintStream ps;
 		
-		for (SocketThread thread: threads)
-			thread.sendMessage("Game world is being saved to xml.");
+		broadcast("Game world is being saved to xml.", false);
 		
 		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 		
@@ -287,7 +539,7 @@ public final class ServerThread extends Thread
 	 */
 	public String restoreWorldStateFromXML()
 	{
-		if (threads.size() <= 1){
+		if (connectionCount.get() <= 1){
 			
 			File dir = new File(Game.getWorldSaveLocation());
 			String[] children = dir.list(); 
@@ -355,11 +607,7 @@ public final class ServerThread extends Thread
 	 */
 	public int countLogins()
 	{
-		int n=0;
-		for (SocketThread thread: getThreads())
-			if (thread.loggedIn()) n++;
-		
-		return n;
+		return loginCount.get();
 	}
 	
 	/**
@@ -368,7 +616,7 @@ public final class ServerThread extends Thread
 	 */
 	public int countConnections()
 	{
-		return getThreads().size();
+		return connectionCount.get();
 	}
 	
 	}
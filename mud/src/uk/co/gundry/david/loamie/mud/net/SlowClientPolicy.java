@@ -0,0 +1,40 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.net;
+
+/**
+ * What to do with a session whose client is not reading its output fast enough, once the
+ * output waiting for it passes the high-water mark.
+ * 
+ * @author David Gundry
+ */
+public enum SlowClientPolicy
+{
+	/**
+	 * Throw away chatter (other players talking, server broadcasts) until the client catches
+	 * up. Other output is still queued, up to twice the high-water mark, after which the
+	 * client is disconnected anyway.
+	 */
+	DROP,
+	/**
+	 * Disconnect the client.
+	 */
+	DISCONNECT;
+}
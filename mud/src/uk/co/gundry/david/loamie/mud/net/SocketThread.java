@@ -21,51 +21,197 @@ package uk.co.gundry.david.loamie.mud.net;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.net.Socket;
-import java.util.NoSuchElementException;
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import uk.co.gundry.david.loamie.mud.Game;
+import uk.co.gundry.david.loamie.mud.world.Door;
+import uk.co.gundry.david.loamie.mud.world.Item;
 import uk.co.gundry.david.loamie.mud.world.PlayerCharacter;
+import uk.co.gundry.david.loamie.mud.world.Room;
 import uk.co.gundry.david.loamie.mud.world.WorldObject;
-import uk.co.gundry.david.loamie.mud.world.command.AdminCommandInterpreter;
-import uk.co.gundry.david.loamie.mud.world.command.PlayerCommandInterpreter;
-import uk.co.gundry.david.loamie.mud.world.command.UnLoggedInCommandInterpreter;
+import uk.co.gundry.david.loamie.mud.world.command.Command;
+import uk.co.gundry.david.loamie.mud.world.command.CommandRegistry;
 
 
 /**
- * Handles communications with a single network socket.
+ * Handles communications with a single network socket: one session on the server.
+ * 
+ * In thread and virtual modes the server runs this on a thread of its own, which blocks
+ * reading lines from the socket. In nio mode it is never run; instead a SelectorThread
+ * reads from the channel and passes the bytes in through bytesReceived(), and writes out
+ * the write queue.
  * 
  * @author Adam Gundry, extended by David Gundry
  */
-public final class SocketThread extends Thread
+public final class SocketThread implements Runnable
 {            		
-	private boolean running = false;    	
+	/**
+	 * Longest line a client may send in nio mode. Anything longer is thrown away.
+	 */
+	private static final int MAX_LINE_LENGTH = 4096;
+	/**
+	 * Most buffers handed to the channel in one gathering write.
+	 */
+	private static final int MAX_GATHER = 64;
+	/**
+	 * Most lines held back from a client sending commands too quickly in nio mode. Anything
+	 * more is thrown away.
+	 */
+	private static final int MAX_PENDING_LINES = 64;
+	private static final Charset CHARSET = Charset.defaultCharset();
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+	private static final AtomicLong nextId = new AtomicLong();
+	/**
+	 * Offers the client MCCP compression.
+	 */
+	private static final byte[] WILL_COMPRESS2 = {(byte) TelnetFilter.IAC, (byte) TelnetFilter.WILL, TelnetFilter.COMPRESS2};
+	/**
+	 * Tells the client that everything after it is compressed.
+	 */
+	private static final byte[] START_COMPRESS2 = {(byte) TelnetFilter.IAC, (byte) TelnetFilter.SB, TelnetFilter.COMPRESS2,
+		(byte) TelnetFilter.IAC, (byte) TelnetFilter.SE};
+	/**
+	 * Marks the point in a write queue after which output is to be compressed. Compared by
+	 * identity, never written.
+	 */
+	private static final ByteBuffer START_COMPRESSION = ByteBuffer.allocate(0);
+	
+	/**
+	 * The sessions that have had output queued while the current thread handles a command.
+	 * Their output is flushed together once the command is done, so that everything a
+	 * command produces for a player goes out in one write. Null when the current thread
+	 * is not handling a command, in which case output is flushed straight away.
+	 */
+	private static final ThreadLocal<List<SocketThread>> batch = new ThreadLocal<List<SocketThread>>();
+	
+	private final long id = nextId.incrementAndGet();
+	private volatile boolean running = false;
+	private volatile boolean disconnected = false;
 	private String remoteIP = "unknown";
 	
 	private transient BufferedReader in;
-	private transient PrintStream out;
     private transient ServerThread serverThread;
-    private transient Socket socket;
+    private transient SocketChannel channel;
+    private transient SelectorThread selectorThread;
+    private transient SelectionKey key;
+    
+    /**
+     * Output waiting to be written to the socket, already encoded.
+     */
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+    /**
+     * Number of bytes in the write queue.
+     */
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    /**
+     * Set while this session is waiting in a batch, or on its selector thread, to be flushed.
+     */
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    /**
+     * Set while a writer task is writing out the queue of a blocking channel, so that there
+     * is only ever one.
+     */
+    private final AtomicBoolean writing = new AtomicBoolean();
+    /**
+     * Set while the queue is over the high-water mark, so each time it fills up is counted once.
+     */
+    private volatile boolean backedUp = false;
+    /**
+     * Set once the client has been judged too slow and is being thrown off.
+     */
+    private volatile boolean abandoned = false;
+    private volatile boolean closing = false;
+    private byte[] lineBuffer;
+    private int lineLength;
+    private final TelnetFilter telnet = new TelnetFilter(this);
+    /**
+     * Set once the client has agreed to compression.
+     */
+    private final AtomicBoolean compressionAccepted = new AtomicBoolean();
+    /**
+     * Compresses output once compression has started; null before then. Only whoever is
+     * doing the writing may change this or touch compressedOutput; it is volatile so that
+     * an admin can see how it is doing from elsewhere.
+     */
+    private volatile StreamCompressor compressor;
+    /**
+     * Compressed output still to be written.
+     */
+    private ByteBuffer compressedOutput;
+    /**
+     * Goes off when the session has sat idle too long, or taken too long to log in.
+     */
+    private TimerWheel.Timer timeout;
+    /**
+     * Limits how fast commands are handled, or null if there is no limit.
+     */
+    private final TokenBucket commandBucket = (Game.getCommandRate() > 0) ? new TokenBucket(Game.getCommandRate(), Game.getCommandBurst()) : null;
+    /**
+     * Lines held back in nio mode because the client is sending commands too quickly. Only
+     * the selector thread touches it.
+     */
+    private final Deque<String> pendingLines = new ArrayDeque<String>();
+    /**
+     * Set once the client has been told it is sending commands too quickly, until it slows down.
+     */
+    private boolean throttleWarned = false;
     
-    PlayerCharacter character;
+    /**
+     * Set on whichever thread carries out commands, and read by the network thread.
+     */
+    volatile PlayerCharacter character;
     
     /**
-     * Create a thread for communication with the given socket,
-     * running under the given server.
+     * Create a session for the given blocking channel, running under the given server.
+     * The server starts a thread to run its read loop.
      * 
-     * @param socket  Socket to communicate with
+     * @param channel  Channel to communicate with
      * @param server  Server controlling threads
      */
-    SocketThread(Socket socket, ServerThread server)
+    SocketThread(SocketChannel channel, ServerThread server)
     {
-    	super("NetThread");
-    	
-    	this.socket = socket;
+    	this.channel = channel;
 		this.serverThread = server;
     }
     
+    /**
+     * Create a session for the given channel, which will be made non-blocking and serviced
+     * by the given selector thread.
+     * 
+     * @param channel  Channel to communicate with
+     * @param server  Server controlling threads
+     * @param selectorThread  Selector thread that will do the reading and writing
+     */
+    SocketThread(SocketChannel channel, ServerThread server, SelectorThread selectorThread)
+    {
+    	this.channel = channel;
+    	this.serverThread = server;
+    	this.selectorThread = selectorThread;
+    	this.lineBuffer = new byte[256];
+    }
+    
+    /**
+     * Returns the number that identifies this session in the log.
+     */
+    public long getId()
+    {
+    	return id;
+    }
+    
     public PlayerCharacter getCharacter()
     {
     	return character;
@@ -80,11 +226,74 @@ public final class SocketThread extends Thread
     	return serverThread;
     }
     
+    /**
+     * Returns true if this connection needs a thread of its own to block on the socket,
+     * false if it is serviced by a selector thread.
+     */
+    boolean isBlocking()
+    {
+    	return (selectorThread == null);
+    }
+    
+    SocketChannel getChannel()
+    {
+    	return channel;
+    }
+    
+    SelectionKey getKey()
+    {
+    	return key;
+    }
+    
+    void setKey(SelectionKey key)
+    {
+    	this.key = key;
+    }
+    
+    /**
+     * Returns true if the connection should be closed once its write queue is empty.
+     */
+    boolean isClosing()
+    {
+    	return closing;
+    }
+    
+    /**
+     * Returns true if the client has been judged too slow and should be disconnected.
+     */
+    boolean isAbandoned()
+    {
+    	return abandoned;
+    }
+    
     /**
      * Shut down the socket connection.     
      */
     public void disconnect()
     {    	    
+    	synchronized (this)
+    	{
+    		if (disconnected)
+    			return;
+    		disconnected = true;
+    	}
+    	if (timeout != null)
+    		serverThread.getReaper().cancel(timeout);
+    	running = false;
+    	// Moving the character to Limbo changes the world, so it is done where commands are
+    	serverThread.execute(new Runnable() {
+    		public void run()
+    		{
+    			leave();
+    		}
+    	});
+    }
+    
+    /**
+     * Puts the character in Limbo, says goodbye and closes the connection.
+     */
+    private void leave()
+    {
 		if (loggedIn()){
 			sendMessage("You are now being placed in Limbo. When you log back on you will be returned to your previous location.");
 			character.moveToByID(0);
@@ -92,14 +301,49 @@ public final class SocketThread extends Thread
 			character.playerDisconnected();
 		}
     	logMessage("Connection closed.");	
-    	running = false;
-        out.close(); 
-        try { in.close(); } catch (IOException e) { e.printStackTrace(); }
-        try { socket.close(); } catch (IOException e) { e.printStackTrace(); }
+    	if (queuedBytes.get() > Game.getOutputHighWater())
+    	{
+    		// The client is not reading, so the goodbye messages would never go. In nio mode
+    		// the selector thread closes the channel, as it does every other.
+    		abandon();
+    	} else {
+    		// Whoever writes the queue out closes the channel once the goodbye messages have gone
+    		closing = true;
+    		flush();
+    	}
         
         serverThread.threadDisconnected(this);
     }
     
+    /**
+     * Called when reading from or writing to the socket fails, usually because the client
+     * has gone away. Disconnects the connection if it has not already been.
+     * 
+     * @param error
+     */
+    void connectionLost(IOException error)
+    {
+    	if (abandoned && !disconnected)
+    		logMessage("Disconnected: not reading its output.");
+    	else if (running)
+    		logError(error);
+    	if (!isBlocking())
+    		closeChannel();
+    	disconnect();
+    }
+    
+    /**
+     * Closes the channel of a connection in nio mode. Only called by the selector thread.
+     */
+    void closeChannel()
+    {
+    	closing = false;
+    	if (key != null)
+    		key.cancel();
+    	try { channel.close(); } catch (IOException e) { e.printStackTrace(); }
+    	endCompression();
+    }
+    
 	/**
 	 * Log an error which occurred in this thread.
 	 * 
@@ -125,46 +369,34 @@ public final class SocketThread extends Thread
 	/**
 	 * Handle the command received from the client.
 	 * 
-	 * @param command  Text received
+	 * @param command  Command received
 	 */
-	private void processCommand(String command)
+	private void processCommand(Command command)
 	{
 		logMessage("Command: " + command);				
 		
 		// Commands for logged-in players
 		if (character != null)
 		{
-			//Admin Commands
-			if (new AdminCommandInterpreter().interpret(command, this))
-				return;
-			//Player Commands
-			if (new PlayerCommandInterpreter().interpret(command, this))
+			//Admin and Player Commands
+			if (CommandRegistry.getGameCommands().dispatch(command, this))
 				return;
 
-			// If no luck, split it up and look for an object. When it finds one, see if that knows what the verb is.
+			// If no luck, look for an object named in it. When it finds one, see if that knows what the verb is.
 			int retval = 0;
-			StringTokenizer st = new StringTokenizer(command.toLowerCase());
-			try {
-			st.nextToken();
-			} catch(NoSuchElementException ex)
+			if (command.getWordCount() == 0)
 			{
 				sendMessage("Huh?");
 				return;
 			}
-			    while (st.hasMoreTokens()) {
-			    	String nextToTry = st.nextToken();
-				    WorldObject object = character.getContentsByName(nextToTry);
+			    for (int i=1;i<command.getWordCount();i++) {
+			    	String nextToTry = command.getWord(i);
+			    	Command verb = command.truncate(command.getText().length()-(nextToTry.length()+1));
+			    	WorldObject object = findObject(nextToTry, verb);
 				    if (object != null){
-					    retval = object.interpretCommand(command.substring(0, command.length()-(nextToTry.length()+1)), character);
+					    retval = object.interpretCommand(verb, character);
 					    if (retval == 0)
-					    	sendMessage("Inven: You cannot do that to " + object.getName());
-				    } else {
-				    	WorldObject object2 = character.getLocation().getContentsByName(nextToTry);
-					    if (object2 != null){
-						    retval = object2.interpretCommand(command.substring(0, command.length()-(nextToTry.length()+1)), character);
-						    if (retval == 0)
-						    	sendMessage("You cannot do that to " + object2.getName());
-					    }
+					    	sendMessage((object.getLocation() == character ? "Inven: " : "") + "You cannot do that to " + object.getName());
 				    }
 				}
 			if (retval == 1)
@@ -173,19 +405,19 @@ public final class SocketThread extends Thread
 		} else {
 			
 			// Commands for connections which have not logged in
-			if (new UnLoggedInCommandInterpreter().interpret(command, this))
+			if (CommandRegistry.getConsoleCommands().dispatch(command, this))
 				return;
 
 		}
 		
 		// Commands for everybody
 		
-		if (command.equals("quit"))
+		if (command.getText().equals("quit"))
 		{
 			disconnect();
 			return; 
 		}
-		if (command.equals("help"))
+		if (command.getText().equals("help"))
 		{
 			if (character != null)
 			{
@@ -201,21 +433,74 @@ public final class SocketThread extends Thread
 		// If we got here, the command wasn't understood
 		sendMessage("Huh?");
 	}
+	
+	/**
+	 * Finds the object a command names, carried by the character or in the same room.
+	 * Objects which say they understand the verb come first, then anything with the name.
+	 * 
+	 * @param name - one word of the command
+	 * @param verb - the words before it
+	 */
+	private WorldObject findObject(String name, Command verb)
+	{
+		WorldObject object = character.getContentsByVerb(name, verb.getLowerCase());
+		if (object == null)
+			object = character.getLocation().getContentsByVerb(name, verb.getLowerCase());
+		if (object == null)
+			object = character.getContentsByName(name);
+		if (object == null)
+			object = character.getLocation().getContentsByName(name);
+		return object;
+	}
+	
+	/**
+	 * Returns the room a command will stay inside, or null if it might reach outside it.
+	 * It stays inside if the character is in a room and has no listener, its verb is one
+	 * of those which stay in the room or has no handlers, and none of the objects it might
+	 * be passed to are doors or items with a script for it which shouts. Commands from
+	 * sessions which have not logged in never do.
+	 * 
+	 * @param command
+	 */
+	private Room findCommandRoom(Command command)
+	{
+		if (disconnected || character == null || character.getListener() != null)
+			return null;
+		if (!(character.getLocation() instanceof Room))
+			return null;
+		if (!CommandRegistry.getGameCommands().isLocal(command))
+			return null;
+		for (int i = 1; i < command.getWordCount(); i++)
+		{
+			String name = command.getWord(i);
+			Command verb = command.truncate(command.getText().length() - (name.length() + 1));
+			WorldObject object = findObject(name, verb);
+			// Doors lead out of the room, and shouts are heard throughout its zone
+			if (object instanceof Door || (object instanceof Item && ((Item) object).shouts(verb)))
+				return null;
+		}
+		return (Room) character.getLocation();
+	}
       
 	public void init()
 	{
 		try
     	{
     		// Set up the connection
-    		out = new PrintStream(socket.getOutputStream());
-        	in = new BufferedReader(new InputStreamReader(socket.getInputStream()));                           
-            remoteIP = socket.getInetAddress().getHostAddress();                      
+            remoteIP = channel.socket().getInetAddress().getHostAddress();
+            timeout = serverThread.getReaper().newTimer(timedOut);
+            startTimeout(Game.getLoginTimeout() > 0 ? Game.getLoginTimeout() : Game.getIdleTimeout());
+            running = true;
+			if (isBlocking())
+	        	in = new BufferedReader(new InputStreamReader(telnet.filter(channel.socket().getInputStream()), CHARSET));                           
+			else
+				selectorThread.register(this);
             
+            if (Game.isCompressionEnabled())
+            	queue(ByteBuffer.wrap(WILL_COMPRESS2), false);
             logMessage("Accepted connection.");
             sendMessage(Game.getWelcomeMessage());
             sendMessage(Game.getWorld().getWelcomeMessage());
-            
-    		running = true;
     	} catch (IOException ex) {
     		logError(ex);
     		disconnect();
@@ -228,7 +513,6 @@ public final class SocketThread extends Thread
      * Notify all the network listeners when we receive data.
      * To stop the loop, set running to false.
      */
-    @Override
     public void run()
     {
    		try
@@ -239,21 +523,202 @@ public final class SocketThread extends Thread
 	        	if (command == null)
 	        		throw new IOException("Stream closed unexpectedly. The client probably disconnected without quitting first.");	        	
 		        
-	        	if (character != null)
-		        	if (character.getListener() != null)
-		        		character.getListener().listenToCommand(command, character);
-		        	else
-		        		processCommand(command);    
-	        	else
-	        		processCommand(command);
+	        	waitForToken();
+	        	boolean batched = beginBatch();
+	        	try
+	        	{
+	        		lineReceived(command);
+	        	} finally {
+	        		if (batched)
+	        			endBatch();
+	        	}
 	        }
    		}
 	    catch(IOException e)
 	    {
-	    	logError(e);
+	    	connectionLost(e);
 	    }
 
     }
+    
+    /**
+     * Called in nio mode with bytes the selector thread has read from the channel. Splits
+     * them into lines and handles each complete line.
+     * 
+     * @param buffer  Bytes read from the channel
+     */
+    void bytesReceived(ByteBuffer buffer)
+    {
+    	boolean batched = beginBatch();
+    	try
+    	{
+    		frameLines(buffer);
+    	} finally {
+    		if (batched)
+    			endBatch();
+    	}
+    }
+    
+    private void frameLines(ByteBuffer buffer)
+    {
+    	while (buffer.hasRemaining() && running)
+    	{
+    		int b = telnet.filter(buffer.get() & 0xff);
+    		if (b < 0)
+    			continue;
+    		if (b == '\n')
+    		{
+    			int length = lineLength;
+    			if (length > 0 && lineBuffer[length-1] == '\r')
+    				length--;
+    			lineLength = 0;
+    			lineFramed(new String(lineBuffer, 0, length, CHARSET));
+    		} else if (lineLength < MAX_LINE_LENGTH) {
+    			if (lineLength == lineBuffer.length)
+    				lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineBuffer.length * 2, MAX_LINE_LENGTH));
+    			lineBuffer[lineLength++] = (byte) b;
+    		}
+    	}
+    }
+    
+    /**
+     * In blocking modes, waits until the client may send another command. Makes the client
+     * wait rather than throwing its input away: what it sends meanwhile waits in the socket.
+     */
+    private void waitForToken() throws InterruptedIOException
+    {
+    	if (commandBucket == null)
+    		return;
+    	if (commandBucket.tryTake())
+    	{
+    		throttleWarned = false;
+    		return;
+    	}
+    	warnThrottled("They will be handled more slowly.");
+    	try
+    	{
+    		while (!commandBucket.tryTake())
+    		{
+    			long nanos = commandBucket.nanosUntilToken();
+    			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+    		}
+    	} catch (InterruptedException e) {
+    		throw new InterruptedIOException("Interrupted waiting to handle a command.");
+    	}
+    }
+    
+    /**
+     * In nio mode, handles a line straight away if the client may send another command,
+     * otherwise holds it back for the selector thread to handle later. If too many lines
+     * are held back already, the line is thrown away.
+     * 
+     * @param line
+     */
+    private void lineFramed(String line)
+    {
+    	if (commandBucket == null)
+    	{
+    		lineReceived(line);
+    		return;
+    	}
+    	if (pendingLines.isEmpty() && commandBucket.tryTake())
+    	{
+    		throttleWarned = false;
+    		lineReceived(line);
+    		return;
+    	}
+    	if (pendingLines.size() >= MAX_PENDING_LINES)
+    	{
+    		serverThread.getOutputStats().commandDropped();
+    		return;
+    	}
+    	warnThrottled("Some may be ignored.");
+    	if (pendingLines.isEmpty())
+    		selectorThread.throttled(this);
+    	pendingLines.add(line);
+    }
+    
+    /**
+     * Called by the selector thread to handle the lines held back for a session, as fast as
+     * it is allowed. Returns the nanoseconds until it may handle the next one, or 0 if there
+     * are none left.
+     */
+    long handlePendingLines()
+    {
+    	boolean batched = beginBatch();
+    	try
+    	{
+	    	while (!pendingLines.isEmpty() && running)
+	    	{
+	    		if (!commandBucket.tryTake())
+	    			return Math.max(1, commandBucket.nanosUntilToken());
+	    		lineReceived(pendingLines.poll());
+	    	}
+	    	pendingLines.clear();
+	    	return 0;
+    	} finally {
+    		if (batched)
+    			endBatch();
+    	}
+    }
+    
+    private void warnThrottled(String consequence)
+    {
+    	if (throttleWarned)
+    		return;
+    	throttleWarned = true;
+    	serverThread.getOutputStats().sessionThrottled();
+    	sendMessage("You are sending commands too quickly. " + consequence);
+    }
+    
+    /**
+     * Parses a line received from the client and has it carried out, by the game loop in
+     * loop and parallel modes. The network thread only touches the session, never the world.
+     * 
+     * @param command  Line received
+     */
+    private void lineReceived(String line)
+    {
+    	if (loggedIn() || Game.getLoginTimeout() == 0)
+    		startTimeout(Game.getIdleTimeout());
+    	final Command command = Command.parse(line);
+    	serverThread.execute(new GameLoop.RoomTask() {
+    		public void run()
+    		{
+    			commandReceived(command);
+    		}
+    		
+    		public Object getSession()
+    		{
+    			return SocketThread.this;
+    		}
+    		
+    		public Room getRoom()
+    		{
+    			return findCommandRoom(command);
+    		}
+    	});
+    }
+    
+    /**
+     * Passes a command to whatever should handle it: the character's listener if it has one,
+     * otherwise the command interpreters. Commands still queued when the session disconnects
+     * are dropped.
+     * 
+     * @param command
+     */
+    private void commandReceived(Command command)
+    {
+    	if (disconnected)
+    		return;
+    	if (character != null)
+        	if (character.getListener() != null)
+        		character.getListener().listenToCommand(command, character);
+        	else
+        		processCommand(command);    
+    	else
+    		processCommand(command);
+    }
 
     /**
      * Send a message object to the remote socket.
@@ -261,10 +726,332 @@ public final class SocketThread extends Thread
      * @param message  Message object to send
      */
     public void sendMessage(String message)
+    {
+    	queue(ByteBuffer.wrap(encode(message)), false);
+    }
+    
+    /**
+     * Send chatter to the remote socket: things the client can miss if it falls behind,
+     * such as other players talking or server broadcasts.
+     * 
+     * @param message  Message object to send
+     */
+    public void sendChatter(String message)
+    {
+    	queue(ByteBuffer.wrap(encode(message)), true);
+    }
+    
+    /**
+     * Sends output that has already been encoded, perhaps shared between many sessions.
+     * The buffer itself is never modified; the session queues its own view of it.
+     * 
+     * @param encoded - output from encode(), which should be read-only if it is shared
+     * @param chatter - true if the output may be dropped for a slow client
+     */
+    void sendEncoded(ByteBuffer encoded, boolean chatter)
+    {
+    	queue(encoded.duplicate(), chatter);
+    }
+    
+    /**
+     * Adds encoded output to the write queue. If the current thread is handling a command
+     * the flush is put off until the command is done, otherwise it happens now.
+     * 
+     * If the client has let the queue back up past the high-water mark, the slow client
+     * policy decides whether the output is dropped or the client is disconnected.
+     * 
+     * @param buffer
+     * @param chatter - true if the output may be dropped for a slow client
+     */
+    private void queue(ByteBuffer buffer, boolean chatter)
+    {
+    	if (closing || abandoned || !channel.isOpen())
+    		return;
+    	int highWater = Game.getOutputHighWater();
+    	int queued = queuedBytes.get() + buffer.remaining();
+    	if (queued > highWater)
+    	{
+    		if (!backedUp)
+    		{
+    			backedUp = true;
+    			serverThread.getOutputStats().highWaterReached();
+    		}
+    		if (Game.getSlowClientPolicy() == SlowClientPolicy.DISCONNECT || queued > 2 * highWater)
+    		{
+    			abandon();
+    			return;
+    		}
+    		if (chatter)
+    		{
+    			serverThread.getOutputStats().messageDropped();
+    			return;
+    		}
+    	}
+    	queuedBytes.addAndGet(buffer.remaining());
+    	writeQueue.add(buffer);
+    	List<SocketThread> sessions = batch.get();
+    	if (sessions == null)
+    		flush();
+    	else if (flushPending.compareAndSet(false, true))
+    		sessions.add(this);
+    }
+    
+    /**
+     * Throws off a client which is not reading its output. Closing a blocking channel wakes
+     * the read loop, which disconnects the session; in nio mode the selector thread does it.
+     */
+    private void abandon()
+    {
+    	synchronized (this)
+    	{
+    		if (abandoned)
+    			return;
+    		abandoned = true;
+    	}
+    	serverThread.getOutputStats().slowClientDisconnected();
+    	if (isBlocking())
+    		try { channel.close(); } catch (IOException e) { e.printStackTrace(); }
+    	else
+    		selectorThread.flush(this);
+    }
+    
+    /**
+     * Writes out everything in the write queue: in nio mode by handing it to the selector
+     * thread, otherwise by starting a writer task if one is not already running. Either way
+     * the caller never blocks on a slow client.
+     */
+    private void flush()
+    {
+    	flushPending.set(false);
+    	if (!isBlocking())
+    		selectorThread.flush(this);
+    	else if (writing.compareAndSet(false, true))
+    		serverThread.getWriters().execute(writer);
+    }
+    
+    /**
+     * Writer task for blocking channels. Writes the write queue out, as few gathering writes
+     * as possible, until it is empty. If the write fails the channel is closed, and the read
+     * loop cleans up.
+     * 
+     * Only the task holding writing closes the channel once the session is closing, so that
+     * it cannot close it under another writer still sending the goodbye. Having closed it,
+     * the task keeps hold of writing, so no writer starts again.
+     */
+    private final Runnable writer = new Runnable()
+    {
+    	public void run()
+    	{
+	    	try
+	    	{
+	    		while (true)
+	    		{
+	    			writeQueued();
+	    			if (closing && writeQueue.isEmpty())
+	    			{
+	    				channel.close();
+	    				endCompression();
+	    				return;
+	    			}
+		    		writing.set(false);
+		    		// Goes round again if more was queued, or the session started closing, meanwhile
+		    		if ((writeQueue.isEmpty() && !closing) || !writing.compareAndSet(false, true))
+		    			return;
+	    		}
+	    	} catch (IOException e) {
+	    		// Keeps hold of writing, so the compressor is freed by its only user and no
+	    		// writer starts on the closed channel
+	    		try { channel.close(); } catch (IOException ex) { ex.printStackTrace(); }
+	    		endCompression();
+	    	}
+    	}
+    };
+    
+    /**
+     * Writes out as much of the write queue as the channel will take, compressing it once
+     * compression has started. Returns true if the queue was emptied, false if the channel
+     * would not take any more without blocking. Only whoever is doing the writing may call
+     * this: the writer task, or in nio mode the selector thread.
+     */
+    boolean writeQueued() throws IOException
+    {
+    	while (true)
+    	{
+    		if (compressedOutput != null)
+    		{
+    			channel.write(compressedOutput);
+    			if (compressedOutput.hasRemaining())
+    				return false;
+    			compressedOutput = null;
+    		}
+    		
+    		ByteBuffer[] buffers = peekOutput();
+    		StreamCompressor compressor = this.compressor;
+    		if (buffers == null)
+    		{
+    			if (writeQueue.peek() != START_COMPRESSION)
+    				return true;
+    			writeQueue.poll();
+    			this.compressor = new StreamCompressor(serverThread.getOutputStats());
+    		} else if (compressor != null) {
+    			compressedOutput = compressor.compress(buffers);
+    			outputWritten(buffers);
+    		} else {
+    			channel.write(buffers);
+    			if (!outputWritten(buffers))
+    				return false;
+    		}
+    	}
+    }
+    
+    /**
+     * Returns the buffers at the head of the write queue, as many as go in one gathering
+     * write, or null if there are none. Stops short of the start of compression, so that
+     * what comes after it is not written uncompressed. Only whoever is doing the writing
+     * may call this.
+     */
+    private ByteBuffer[] peekOutput()
+    {
+    	List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    	for (ByteBuffer buffer: writeQueue)
+    	{
+    		if (buffer == START_COMPRESSION)
+    			break;
+    		buffers.add(buffer);
+    		if (buffers.size() == MAX_GATHER)
+    			break;
+    	}
+    	if (buffers.isEmpty())
+    		return null;
+    	return buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+    
+    /**
+     * Removes from the write queue those of the buffers which have been written completely.
+     * Returns true if they all were.
+     * 
+     * @param buffers - buffers previously returned by peekOutput()
+     */
+    private boolean outputWritten(ByteBuffer[] buffers)
+    {
+    	for (ByteBuffer buffer: buffers)
+    	{
+    		if (buffer.hasRemaining())
+    			return false;
+    		writeQueue.poll();
+    		if (queuedBytes.addAndGet(-buffer.limit()) <= Game.getOutputHighWater())
+    			backedUp = false;
+    	}
+    	return true;
+    }
+    
+    /**
+     * Called by the telnet filter when the client agrees to compression. Everything queued
+     * after this goes out compressed.
+     */
+    void compressionAccepted()
+    {
+    	if (!Game.isCompressionEnabled() || !compressionAccepted.compareAndSet(false, true))
+    		return;
+    	queue(ByteBuffer.wrap(START_COMPRESS2), false);
+    	queue(START_COMPRESSION, false);
+    	logMessage("Compression started.");
+    }
+    
+    /**
+     * Frees the compressor, once the channel has been closed. Only whoever is doing the
+     * writing may call this: the writer task while it holds writing, or in nio mode the
+     * selector thread.
+     */
+    private void endCompression()
+    {
+    	if (compressor != null)
+    	{
+    		compressor.end();
+    		compressor = null;
+    	}
+    }
+    
+    /**
+     * Returns how well compression is doing for this session, as text for an admin.
+     */
+    public String describeCompression()
+    {
+    	StreamCompressor compressor = this.compressor;
+    	if (compressor == null)
+    		return "uncompressed";
+    	return "compressed " + compressor.describe();
+    }
+    
+    /**
+     * Starts a batch on the current thread, if it is not already in one. Returns true if
+     * it started one, in which case the caller must end it with endBatch().
+     */
+    static boolean beginBatch()
+    {
+    	if (batch.get() != null)
+    		return false;
+    	batch.set(new ArrayList<SocketThread>());
+    	return true;
+    }
+    
+    /**
+     * Ends the current thread's batch, flushing every session that had output queued during it.
+     */
+    static void endBatch()
+    {
+    	List<SocketThread> sessions = batch.get();
+    	batch.remove();
+    	for (SocketThread session: sessions)
+    		session.flush();
+    }
+    
+    /**
+     * Sets the session's timeout going again from now. Until the session logs in it is held
+     * to the login timeout, which a line from the client does not restart.
+     * 
+     * @param seconds - until the session is disconnected, or 0 for never
+     */
+    private void startTimeout(int seconds)
+    {
+    	if (seconds > 0)
+    		serverThread.getReaper().schedule(timeout, seconds * 1000L);
+    	else
+    		serverThread.getReaper().cancel(timeout);
+    }
+    
+    /**
+     * Run on the reaper thread when the session's timeout goes off.
+     */
+    private final Runnable timedOut = new Runnable()
+    {
+    	public void run()
+    	{
+    		if (loggedIn())
+    		{
+    			logMessage("Timed out: idle.");
+    			sendMessage("You have been idle too long.");
+    		} else {
+    			logMessage("Timed out: did not log in.");
+    			sendMessage("You took too long to log in.");
+    		}
+    		disconnect();
+    	}
+    };
+    
+    /**
+     * Renders a message into the bytes that are sent down the socket for it: each line
+     * indented and terminated.
+     * 
+     * @param message
+     */
+    static byte[] encode(String message)
     {
     	String[] lines = message.split("[\\r\\n]+");
+		StringBuilder text = new StringBuilder();
 		for(int i=0;i<lines.length;i++)
-			out.println("          " + lines[i]);
+			text.append("          ").append(lines[i]).append(LINE_SEPARATOR);
+		return text.toString().getBytes(CHARSET);
     }
 
     /**
@@ -273,8 +1060,13 @@ public final class SocketThread extends Thread
      * @param character
      */
 	public void setCharacter(PlayerCharacter character) {
+		boolean loggingIn = (this.character == null && character != null);
 		this.character = character;
-		
+		if (loggingIn)
+		{
+			serverThread.threadLoggedIn(this);
+			startTimeout(Game.getIdleTimeout());
+		}
 	}
 	
 	/**
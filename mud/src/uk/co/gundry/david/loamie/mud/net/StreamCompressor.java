@@ -0,0 +1,113 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.net;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a session's output stream with zlib, for MCCP. Keeps track of how much it
+ * saves and how long it takes about it.
+ * 
+ * Only the session's writer uses it, so it needs no locking.
+ * 
+ * @author David Gundry
+ */
+final class StreamCompressor
+{
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+	private final OutputStats stats;
+	private byte[] input = new byte[8192];
+	private byte[] output = new byte[8192];
+	
+	private volatile long bytesIn = 0;
+	private volatile long bytesOut = 0;
+	private volatile long nanos = 0;
+	
+	StreamCompressor(OutputStats stats)
+	{
+		this.stats = stats;
+	}
+	
+	/**
+	 * Compresses the remaining bytes of the buffers, using them up, and flushes the stream so
+	 * the client can decompress everything so far. The result is only valid until the next call.
+	 * 
+	 * @param buffers - uncompressed output
+	 */
+	ByteBuffer compress(ByteBuffer[] buffers)
+	{
+		long start = System.nanoTime();
+		int in = 0;
+		int out = 0;
+		for (ByteBuffer buffer: buffers)
+		{
+			while (buffer.hasRemaining())
+			{
+				int length = Math.min(buffer.remaining(), input.length);
+				buffer.get(input, 0, length);
+				in += length;
+				deflater.setInput(input, 0, length);
+				while (!deflater.needsInput())
+				{
+					if (out == output.length)
+						output = Arrays.copyOf(output, output.length * 2);
+					out += deflater.deflate(output, out, output.length - out, Deflater.NO_FLUSH);
+				}
+			}
+		}
+		do
+		{
+			if (out == output.length)
+				output = Arrays.copyOf(output, output.length * 2);
+			out += deflater.deflate(output, out, output.length - out, Deflater.SYNC_FLUSH);
+		} while (out == output.length);
+		
+		long elapsed = System.nanoTime() - start;
+		bytesIn += in;
+		bytesOut += out;
+		nanos += elapsed;
+		stats.compressed(in, out, elapsed);
+		return ByteBuffer.wrap(output, 0, out);
+	}
+	
+	/**
+	 * Frees the compressor's native memory. It must not be used afterwards.
+	 */
+	void end()
+	{
+		deflater.end();
+	}
+	
+	/**
+	 * Returns how well compression is doing for the session, as text for an admin.
+	 */
+	String describe()
+	{
+		return describe(bytesIn, bytesOut, nanos);
+	}
+	
+	static String describe(long bytesIn, long bytesOut, long nanos)
+	{
+		long percent = (bytesIn == 0) ? 100 : (100 * bytesOut / bytesIn);
+		return bytesOut + " of " + bytesIn + " bytes (" + percent + "%), " + (nanos / 1000000) + " ms";
+	}
+}
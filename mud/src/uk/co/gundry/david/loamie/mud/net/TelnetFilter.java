@@ -0,0 +1,149 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.net;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Strips telnet commands out of what a client sends, so that only the text reaches the
+ * command interpreters, and tells the session when the client agrees to compression.
+ * 
+ * @author David Gundry
+ */
+final class TelnetFilter
+{
+	static final int IAC = 255;
+	static final int DONT = 254;
+	static final int DO = 253;
+	static final int WONT = 252;
+	static final int WILL = 251;
+	static final int SB = 250;
+	static final int SE = 240;
+	/**
+	 * The telnet option for MCCP version 2.
+	 */
+	static final int COMPRESS2 = 86;
+	
+	private static final int DATA = 0;
+	private static final int COMMAND = 1;
+	private static final int OPTION = 2;
+	private static final int SUBNEGOTIATION = 3;
+	private static final int SUBNEGOTIATION_IAC = 4;
+	
+	private final SocketThread session;
+	private int state = DATA;
+	private int verb;
+	
+	TelnetFilter(SocketThread session)
+	{
+		this.session = session;
+	}
+	
+	/**
+	 * Passes one byte from the client through the filter. Returns the byte if it is text,
+	 * or -1 if it was part of a telnet command.
+	 * 
+	 * @param b - the byte, from 0 to 255
+	 */
+	int filter(int b)
+	{
+		switch (state)
+		{
+		case DATA:
+			if (b != IAC)
+				return b;
+			state = COMMAND;
+			return -1;
+		case COMMAND:
+			if (b == IAC)
+			{
+				// An escaped 255 in the text
+				state = DATA;
+				return b;
+			}
+			if (b == WILL || b == WONT || b == DO || b == DONT)
+			{
+				verb = b;
+				state = OPTION;
+			} else if (b == SB)
+				state = SUBNEGOTIATION;
+			else
+				state = DATA;
+			return -1;
+		case OPTION:
+			if (b == COMPRESS2 && verb == DO)
+				session.compressionAccepted();
+			state = DATA;
+			return -1;
+		case SUBNEGOTIATION:
+			if (b == IAC)
+				state = SUBNEGOTIATION_IAC;
+			return -1;
+		default:
+			state = (b == SE) ? DATA : SUBNEGOTIATION;
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns a stream which reads the given one through the filter.
+	 * 
+	 * @param in - the socket's input stream
+	 */
+	InputStream filter(InputStream in)
+	{
+		return new FilterInputStream(in)
+		{
+			public int read() throws IOException
+			{
+				int b;
+				do
+				{
+					b = in.read();
+					if (b < 0)
+						return b;
+				} while ((b = filter(b)) < 0);
+				return b;
+			}
+			
+			public int read(byte[] buffer, int offset, int length) throws IOException
+			{
+				int n;
+				do
+				{
+					n = in.read(buffer, offset, length);
+					if (n <= 0)
+						return n;
+					int kept = 0;
+					for (int i=0;i<n;i++)
+					{
+						int b = filter(buffer[offset+i] & 0xff);
+						if (b >= 0)
+							buffer[offset+kept++] = (byte) b;
+					}
+					n = kept;
+				} while (n == 0);
+				return n;
+			}
+		};
+	}
+}
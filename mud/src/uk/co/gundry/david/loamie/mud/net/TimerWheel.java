@@ -0,0 +1,192 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.co.gundry.david.loamie.mud.Game;
+
+/**
+ * A hashed timer wheel, which runs tasks once their timers expire. Used to throw off
+ * sessions which sit idle, or never log in.
+ * 
+ * Timers are kept in doubly linked lists, one per slot of the wheel, so scheduling,
+ * rescheduling and cancelling them all take constant time however many there are. That
+ * matters because a session reschedules its timer on every line it receives. The price
+ * is that timers only go off to the nearest tick.
+ * 
+ * @author David Gundry
+ */
+final class TimerWheel extends Thread
+{
+	/**
+	 * Length of a tick in milliseconds.
+	 */
+	private static final long TICK_MILLIS = 1000;
+	/**
+	 * Number of slots in the wheel. A power of two, so a tick can be turned into a slot by masking.
+	 */
+	private static final int WHEEL_SIZE = 512;
+	
+	/**
+	 * A timer for one task, which can be scheduled and cancelled over and over again.
+	 */
+	static final class Timer
+	{
+		private final Runnable task;
+		private Timer previous;
+		private Timer next;
+		/**
+		 * Times round the wheel still to go before the timer expires.
+		 */
+		private long rounds;
+		private boolean scheduled = false;
+		
+		private Timer(Runnable task)
+		{
+			this.task = task;
+		}
+	}
+	
+	/**
+	 * The head of each slot's list. The heads are never scheduled themselves.
+	 */
+	private final Timer[] slots = new Timer[WHEEL_SIZE];
+	/**
+	 * The next tick to be processed.
+	 */
+	private long tick = 0;
+	
+	TimerWheel()
+	{
+		super("ReaperThread");
+		setDaemon(true);
+		for (int i=0;i<slots.length;i++)
+		{
+			slots[i] = new Timer(null);
+			slots[i].previous = slots[i];
+			slots[i].next = slots[i];
+		}
+	}
+	
+	/**
+	 * Returns a new timer for the task. It does not run until it is scheduled.
+	 * 
+	 * @param task - run on this wheel's thread when the timer expires
+	 */
+	Timer newTimer(Runnable task)
+	{
+		return new Timer(task);
+	}
+	
+	/**
+	 * Sets the timer to go off after the given delay, whether or not it is already scheduled.
+	 * 
+	 * @param timer
+	 * @param delayMillis
+	 */
+	synchronized void schedule(Timer timer, long delayMillis)
+	{
+		unlink(timer);
+		long ticks = Math.max(1, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+		long target = tick + ticks - 1;
+		timer.rounds = (target - tick) / WHEEL_SIZE;
+		Timer head = slots[(int) (target & (WHEEL_SIZE - 1))];
+		timer.previous = head.previous;
+		timer.next = head;
+		head.previous.next = timer;
+		head.previous = timer;
+		timer.scheduled = true;
+	}
+	
+	/**
+	 * Stops the timer from going off, if it is scheduled.
+	 * 
+	 * @param timer
+	 */
+	synchronized void cancel(Timer timer)
+	{
+		unlink(timer);
+	}
+	
+	private void unlink(Timer timer)
+	{
+		if (!timer.scheduled)
+			return;
+		timer.previous.next = timer.next;
+		timer.next.previous = timer.previous;
+		timer.previous = null;
+		timer.next = null;
+		timer.scheduled = false;
+	}
+	
+	/**
+	 * Ticks the wheel over, running the tasks of timers as they expire. The tasks are run
+	 * outside the lock, so they may schedule timers themselves.
+	 */
+	public void run()
+	{
+		long nextTick = System.currentTimeMillis() + TICK_MILLIS;
+		List<Timer> expired = new ArrayList<Timer>();
+		while (true)
+		{
+			long wait = nextTick - System.currentTimeMillis();
+			if (wait > 0)
+			{
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+			nextTick += TICK_MILLIS;
+			
+			synchronized (this)
+			{
+				Timer head = slots[(int) (tick & (WHEEL_SIZE - 1))];
+				Timer timer = head.next;
+				while (timer != head)
+				{
+					Timer next = timer.next;
+					if (timer.rounds == 0)
+					{
+						unlink(timer);
+						expired.add(timer);
+					} else
+						timer.rounds--;
+					timer = next;
+				}
+				tick++;
+			}
+			
+			for (Timer timer: expired)
+			{
+				try {
+					timer.task.run();
+				} catch (RuntimeException e) {
+					Game.logError("Error running timer task.", e);
+				}
+			}
+			expired.clear();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.net;
+
+/**
+ * Limits how fast a session's commands are handled. Tokens build up at a steady rate, to
+ * at most the size of the burst, and handling a command uses one up.
+ * 
+ * Only the thread reading the session's input uses it, so it needs no locking.
+ * 
+ * @author David Gundry
+ */
+final class TokenBucket
+{
+	private final double tokensPerNano;
+	private final double burst;
+	private double tokens;
+	private long lastRefill;
+	
+	/**
+	 * Creates a full bucket.
+	 * 
+	 * @param rate - tokens added per second
+	 * @param burst - most tokens the bucket holds
+	 */
+	TokenBucket(int rate, int burst)
+	{
+		this.tokensPerNano = rate / 1e9;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.lastRefill = System.nanoTime();
+	}
+	
+	/**
+	 * Takes a token if there is one. Returns true if it did.
+	 */
+	boolean tryTake()
+	{
+		refill();
+		if (tokens < 1)
+			return false;
+		tokens -= 1;
+		return true;
+	}
+	
+	/**
+	 * Returns how many nanoseconds until there is a token to take, or 0 if there is one now.
+	 */
+	long nanosUntilToken()
+	{
+		refill();
+		if (tokens >= 1)
+			return 0;
+		return (long) Math.ceil((1 - tokens) / tokensPerNano);
+	}
+	
+	private void refill()
+	{
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+		lastRefill = now;
+	}
+}
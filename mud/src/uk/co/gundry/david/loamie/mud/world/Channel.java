@@ -0,0 +1,93 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.world;
+
+import java.util.Arrays;
+
+import uk.co.gundry.david.loamie.mud.net.Message;
+
+/**
+ * Passes messages to the objects which have subscribed to it. Each room has one for the
+ * things in it which hear messages, which they join on entering and leave on leaving, and
+ * the world has one for each zone, which the rooms in the zone join.
+ * 
+ * The subscribers are kept in an array which is never changed: subscribing and leaving swap
+ * in a new one. Publishing goes through whichever array is current without locking, so any
+ * number of threads may publish while others come and go.
+ * 
+ * @author David Gundry
+ */
+public final class Channel
+{
+	private static final WorldObject[] NONE = new WorldObject[0];
+	
+	private volatile WorldObject[] subscribers = NONE;
+	
+	/**
+	 * Adds a subscriber, unless it is one already.
+	 * 
+	 * @param subscriber
+	 */
+	public synchronized void subscribe(WorldObject subscriber)
+	{
+		WorldObject[] current = subscribers;
+		for (WorldObject existing: current)
+			if (existing == subscriber)
+				return;
+		WorldObject[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = subscriber;
+		subscribers = updated;
+	}
+	
+	/**
+	 * Takes a subscriber off, if it is one.
+	 * 
+	 * @param subscriber
+	 */
+	public synchronized void unsubscribe(WorldObject subscriber)
+	{
+		WorldObject[] current = subscribers;
+		for (int i = 0; i < current.length; i++)
+			if (current[i] == subscriber)
+			{
+				if (current.length == 1)
+				{
+					subscribers = NONE;
+					return;
+				}
+				WorldObject[] updated = new WorldObject[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				subscribers = updated;
+				return;
+			}
+	}
+	
+	/**
+	 * Passes the message to everything subscribed at the moment it is called.
+	 * 
+	 * @param message
+	 */
+	public void publish(Message message)
+	{
+		for (WorldObject subscriber: subscribers)
+			subscriber.hear(message);
+	}
+}
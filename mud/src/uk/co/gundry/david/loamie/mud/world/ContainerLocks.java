@@ -0,0 +1,232 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.world;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+import uk.co.gundry.david.loamie.mud.Game;
+import uk.co.gundry.david.loamie.mud.net.CommandExecution;
+
+/**
+ * Locks that keep moves between containers whole when sessions carry out their own
+ * commands at the same time (direct mode). In the other modes only one thread changes
+ * a room at a time, so nothing is locked.
+ * 
+ * Each container is covered by one of a fixed set of stamped locks, picked by its identity
+ * hash, so the world needs no lock of its own per object. A move write-locks the lock for
+ * the place the object is leaving and the one for where it is going, always the lower
+ * numbered first, so two moves in opposite directions cannot deadlock. Reading a container's
+ * contents is optimistic: the list is copied without locking, and only copied again under a
+ * read lock if a move got in the way.
+ * 
+ * A thread making a move holds only the locks of the two containers involved. Something
+ * reacting to the move, on the same thread, may move or read within those containers without
+ * taking any more locks, but not anywhere else: taking another lock while holding these
+ * could deadlock with a move going the other way, and going unlocked would not be safe, so
+ * it throws an IllegalStateException instead.
+ * 
+ * @author David Gundry
+ */
+final class ContainerLocks
+{
+	/**
+	 * Number of locks. A power of two.
+	 */
+	private static final int STRIPES = 64;
+	
+	private static final StampedLock[] stripes = new StampedLock[STRIPES];
+	
+	/**
+	 * The numbers of the locks the current thread holds for a move, lower first, or null
+	 * while it is not making one. The first is -1 if the object came from nowhere.
+	 */
+	private static final ThreadLocal<int[]> moving = new ThreadLocal<int[]>();
+	
+	static
+	{
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new StampedLock();
+	}
+	
+	private ContainerLocks()
+	{
+	}
+	
+	/**
+	 * Returns true if moves must be locked: that is, if sessions change the world from
+	 * threads of their own.
+	 */
+	static boolean isEnabled()
+	{
+		return Game.getCommandExecution() == CommandExecution.DIRECT;
+	}
+	
+	/**
+	 * Returns the number of the lock covering the container, or -1 for no container.
+	 */
+	private static int stripe(WorldObject container)
+	{
+		if (container == null)
+			return -1;
+		int hash = System.identityHashCode(container);
+		return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+	}
+	
+	/**
+	 * Returns true if the lock numbered is one of those held for a move.
+	 * 
+	 * @param held - the numbers of the locks held, as kept in moving
+	 * @param stripe - a lock number, or -1 for none, which is always held
+	 */
+	private static boolean holds(int[] held, int stripe)
+	{
+		return stripe < 0 || held[0] == stripe || held[1] == stripe;
+	}
+	
+	/**
+	 * Write-locks the containers an object is moving between, lower numbered lock first.
+	 * Returns the stamps to give back to unlock, or null if nothing was locked because this
+	 * thread already holds both locks for a move it is making, or moves are not locked at all.
+	 * 
+	 * @param from - where the object is now; may be null
+	 * @param to - where it is going
+	 * @throws IllegalStateException if this thread is making another move, and does not hold
+	 * the locks for this one
+	 */
+	static long[] lock(WorldObject from, WorldObject to)
+	{
+		if (!isEnabled())
+			return null;
+		int first = stripe(from);
+		int second = stripe(to);
+		if (first > second)
+		{
+			int swap = first;
+			first = second;
+			second = swap;
+		}
+		int[] held = moving.get();
+		if (held != null)
+		{
+			if (holds(held, first) && holds(held, second))
+				return null;
+			throw new IllegalStateException("Cannot move an object into " + to.getName() + " while making a move between other containers");
+		}
+		long[] stamps = new long[2];
+		if (first >= 0 && first != second)
+			stamps[0] = stripes[first].writeLock();
+		stamps[1] = stripes[second].writeLock();
+		moving.set(new int[] { first, second });
+		return stamps;
+	}
+	
+	/**
+	 * Unlocks what lock took for a move between the same two containers.
+	 * 
+	 * @param from
+	 * @param to
+	 * @param stamps - as returned by lock; nothing is done if it is null
+	 */
+	static void unlock(WorldObject from, WorldObject to, long[] stamps)
+	{
+		if (stamps == null)
+			return;
+		moving.remove();
+		int first = stripe(from);
+		int second = stripe(to);
+		if (first > second)
+		{
+			int swap = first;
+			first = second;
+			second = swap;
+		}
+		stripes[second].unlockWrite(stamps[1]);
+		if (first >= 0 && first != second)
+			stripes[first].unlockWrite(stamps[0]);
+	}
+	
+	/**
+	 * Read-locks the container, for reads too long to do optimistically. Returns the stamp
+	 * to give back to unlockRead, or 0 if nothing was locked.
+	 * 
+	 * A thread making a move takes no lock, since it could then deadlock with another move
+	 * waiting for a lock it holds. It may only read the containers it is moving between,
+	 * which its own locks already cover.
+	 * 
+	 * @param container
+	 * @throws IllegalStateException if this thread is making a move, and the container is not
+	 * one of those it is moving between
+	 */
+	static long lockRead(WorldObject container)
+	{
+		if (!isEnabled())
+			return 0;
+		int stripe = stripe(container);
+		int[] held = moving.get();
+		if (held != null)
+		{
+			if (holds(held, stripe))
+				return 0;
+			throw new IllegalStateException("Cannot read " + container.getName() + " while making a move between other containers");
+		}
+		return stripes[stripe].readLock();
+	}
+	
+	/**
+	 * Unlocks what lockRead took.
+	 * 
+	 * @param container
+	 * @param stamp - as returned by lockRead
+	 */
+	static void unlockRead(WorldObject container, long stamp)
+	{
+		if (stamp != 0)
+			stripes[stripe(container)].unlockRead(stamp);
+	}
+	
+	/**
+	 * Returns the container's contents as they were at one moment. When moves are locked
+	 * this is a copy, taken optimistically; otherwise it is the contents themselves.
+	 * 
+	 * @param container
+	 */
+	static List<WorldObject> read(WorldObject container)
+	{
+		if (!isEnabled())
+			return container.getContents();
+		StampedLock lock = stripes[stripe(container)];
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0)
+		{
+			List<WorldObject> copy = new ArrayList<WorldObject>(container.getContents());
+			if (lock.validate(stamp))
+				return copy;
+		}
+		stamp = lockRead(container);
+		try
+		{
+			return new ArrayList<WorldObject>(container.getContents());
+		} finally {
+			unlockRead(container, stamp);
+		}
+	}
+}
@@ -0,0 +1,410 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.world;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes the contents of a room or character by the names they answer to and the verbs
+ * they understand, so that a command like "eat herring" finds the herring without looking
+ * at everything else in the room, and "look at herring" finds it without lower casing the
+ * name of everything else in the room. It also keeps the doors, characters and items in
+ * the contents apart, so that asking a room for its doors does not look at everything else.
+ * 
+ * The index is kept up to date as objects enter and leave. When one is renamed, or its
+ * synonyms or verbs change, it is taken out of the index of its location under its old
+ * names and put back under its new ones; nothing else is touched.
+ * 
+ * @author David Gundry
+ */
+final class ContentsIndex
+{
+	private final WorldObject container;
+	/**
+	 * Lower case name to verb to the objects with that name which understand the verb.
+	 */
+	private final Map<String, Map<String, List<WorldObject>>> byName = new HashMap<String, Map<String, List<WorldObject>>>();
+	/**
+	 * The same, for synonyms.
+	 */
+	private final Map<String, Map<String, List<WorldObject>>> bySynonym = new HashMap<String, Map<String, List<WorldObject>>>();
+	/**
+	 * Lower case name to the objects with that name, whatever they understand, in the order
+	 * they appear in the contents.
+	 */
+	private final Map<String, List<WorldObject>> named = new HashMap<String, List<WorldObject>>();
+	/**
+	 * The same, for synonyms.
+	 */
+	private final Map<String, List<WorldObject>> synonymous = new HashMap<String, List<WorldObject>>();
+	/**
+	 * The doors, characters and items in the contents, in the order they appear, and read-only
+	 * views of them to hand out.
+	 */
+	private final List<Door> doors = new ArrayList<Door>();
+	private final List<GameCharacter> characters = new ArrayList<GameCharacter>();
+	private final List<Item> items = new ArrayList<Item>();
+	private final List<Door> doorsView = Collections.unmodifiableList(doors);
+	private final List<GameCharacter> charactersView = Collections.unmodifiableList(characters);
+	private final List<Item> itemsView = Collections.unmodifiableList(items);
+	/**
+	 * False until the index is first searched. Until then there is nothing to keep up to date,
+	 * so a room nobody looks in never pays for an index.
+	 */
+	private volatile boolean built = false;
+	
+	ContentsIndex(WorldObject container)
+	{
+		this.container = container;
+	}
+	
+	/**
+	 * Called just before an object in the contents is renamed, or changes its synonyms or what
+	 * it understands. Takes it out from under its old names.
+	 * 
+	 * @param object
+	 */
+	synchronized void namesChanging(WorldObject object)
+	{
+		if (!built)
+			return;
+		indexNames(object, false, false);
+	}
+	
+	/**
+	 * Called just after an object in the contents has been renamed, or has changed its synonyms
+	 * or what it understands. Puts it back under its new names, where it appears in the contents,
+	 * which are read-locked meanwhile in direct mode.
+	 * 
+	 * @param object
+	 */
+	void namesChanged(WorldObject object)
+	{
+		if (!built)
+			return;
+		long stamp = ContainerLocks.lockRead(container);
+		try
+		{
+			synchronized (this)
+			{
+				if (container.getContents().contains(object))
+					indexNames(object, true, true);
+			}
+		} finally {
+			ContainerLocks.unlockRead(container, stamp);
+		}
+	}
+	
+	/**
+	 * Called after the object has been added to the container's contents.
+	 * 
+	 * @param object
+	 */
+	synchronized void objectAdded(WorldObject object)
+	{
+		if (!built)
+			return;
+		index(object, true);
+	}
+	
+	/**
+	 * Called after one object has been put in the place of another in the container's
+	 * contents. The replacement takes the other's place in the index too, so that lookups
+	 * still find what a search of the contents would.
+	 * 
+	 * @param object - the object which was replaced
+	 * @param replacement
+	 */
+	synchronized void objectReplaced(WorldObject object, WorldObject replacement)
+	{
+		if (!built)
+			return;
+		List<WorldObject> from = bucket(object);
+		List<WorldObject> to = bucket(replacement);
+		int i = (from == null) ? -1 : from.indexOf(object);
+		if (from == to && i >= 0)
+			from.set(i, replacement);
+		else {
+			if (i >= 0)
+				from.remove(i);
+			if (to != null)
+				insert(to, replacement);
+		}
+		indexNames(object, false, false);
+		indexNames(replacement, true, true);
+	}
+	
+	/**
+	 * Called after the object has been removed from the container's contents.
+	 * 
+	 * @param object
+	 */
+	synchronized void objectRemoved(WorldObject object)
+	{
+		if (!built)
+			return;
+		index(object, false);
+	}
+	
+	/**
+	 * Returns the first object in the contents with the given name which understands the verb,
+	 * or failing that the first with the name as a synonym, or null if there is none.
+	 * 
+	 * @param name - in lower case
+	 * @param verb - in lower case
+	 */
+	WorldObject find(String name, String verb)
+	{
+		prepare();
+		synchronized (this)
+		{
+			WorldObject object = find(byName, name, verb);
+			if (object == null)
+				object = find(bySynonym, name, verb);
+			return object;
+		}
+	}
+	
+	/**
+	 * Returns the first object in the contents with the given name, or failing that the first
+	 * with the name as a synonym, or null if there is none.
+	 * 
+	 * @param name - in lower case
+	 */
+	WorldObject find(String name)
+	{
+		prepare();
+		synchronized (this)
+		{
+			List<WorldObject> objects = named.get(name);
+			if (objects == null)
+				objects = synonymous.get(name);
+			return (objects == null) ? null : objects.get(0);
+		}
+	}
+	
+	/**
+	 * Returns a read-only view of the doors in the contents.
+	 */
+	List<Door> getDoors()
+	{
+		prepare();
+		return doorsView;
+	}
+	
+	/**
+	 * Returns a read-only view of the characters in the contents.
+	 */
+	List<GameCharacter> getGameCharacters()
+	{
+		prepare();
+		return charactersView;
+	}
+	
+	/**
+	 * Returns a read-only view of the items in the contents.
+	 */
+	List<Item> getItems()
+	{
+		prepare();
+		return itemsView;
+	}
+	
+	private static WorldObject find(Map<String, Map<String, List<WorldObject>>> index, String name, String verb)
+	{
+		Map<String, List<WorldObject>> verbs = index.get(name);
+		if (verbs == null)
+			return null;
+		List<WorldObject> objects = verbs.get(verb);
+		return (objects == null) ? null : objects.get(0);
+	}
+	
+	/**
+	 * Builds the index if it has not been. In direct mode the container's contents are
+	 * read-locked while it is built, so that no move changes them part way through; the lock
+	 * is taken before the index's own, in the same order as a move takes them.
+	 */
+	private void prepare()
+	{
+		if (built)
+			return;
+		long stamp = ContainerLocks.lockRead(container);
+		try
+		{
+			synchronized (this)
+			{
+				if (!built)
+					rebuild();
+			}
+		} finally {
+			ContainerLocks.unlockRead(container, stamp);
+		}
+	}
+	
+	private void rebuild()
+	{
+		built = true;
+		byName.clear();
+		bySynonym.clear();
+		named.clear();
+		synonymous.clear();
+		doors.clear();
+		characters.clear();
+		items.clear();
+		for (WorldObject object: container.getContents())
+			index(object, true);
+	}
+	
+	/**
+	 * Adds the object to the index, or removes it.
+	 */
+	private void index(WorldObject object, boolean add)
+	{
+		if (object instanceof Door)
+			sort(doors, (Door) object, add);
+		else if (object instanceof GameCharacter)
+			sort(characters, (GameCharacter) object, add);
+		else if (object instanceof Item)
+			sort(items, (Item) object, add);
+		indexNames(object, add, false);
+	}
+	
+	/**
+	 * Adds the object under its names, synonyms and verbs, or removes it.
+	 * 
+	 * @param inPlace - true to put it where it appears in the contents rather than on the end
+	 */
+	private void indexNames(WorldObject object, boolean add, boolean inPlace)
+	{
+		if (object.getName() != null)
+			update(named, object.getName().toLowerCase(), object, add, inPlace);
+		if (object.getSynonyms() != null)
+			for (String synonym: object.getSynonyms())
+				update(synonymous, synonym.toLowerCase(), object, add, inPlace);
+		for (String verb: object.getVerbs())
+		{
+			if (object.getName() != null)
+				update(byName, object.getName().toLowerCase(), verb, object, add, inPlace);
+			if (object.getSynonyms() != null)
+				for (String synonym: object.getSynonyms())
+					update(bySynonym, synonym.toLowerCase(), verb, object, add, inPlace);
+		}
+	}
+	
+	/**
+	 * Adds an object which has been renamed, or put in the place of another, to a list of
+	 * objects in the contents, before the first of them which comes after it there, so that
+	 * a lookup finds the same one a search of the contents would.
+	 */
+	private void insert(List<WorldObject> objects, WorldObject object)
+	{
+		List<WorldObject> contents = container.getContents();
+		int position = contents.indexOf(object);
+		for (int i = 0; i < objects.size(); i++)
+			if (contents.indexOf(objects.get(i)) > position)
+			{
+				objects.add(i, object);
+				return;
+			}
+		objects.add(object);
+	}
+	
+	/**
+	 * Returns the list of doors, characters or items the object belongs in, or null if it is
+	 * none of them. Only objects of the right kind are ever put in it.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<WorldObject> bucket(WorldObject object)
+	{
+		if (object instanceof Door)
+			return (List<WorldObject>) (List<?>) doors;
+		else if (object instanceof GameCharacter)
+			return (List<WorldObject>) (List<?>) characters;
+		else if (object instanceof Item)
+			return (List<WorldObject>) (List<?>) items;
+		return null;
+	}
+	
+	private static <T> void sort(List<T> bucket, T object, boolean add)
+	{
+		if (add)
+			bucket.add(object);
+		else
+			bucket.remove(object);
+	}
+	
+	private void update(Map<String, List<WorldObject>> index, String name, WorldObject object, boolean add, boolean inPlace)
+	{
+		List<WorldObject> objects = index.get(name);
+		if (objects == null)
+		{
+			if (!add)
+				return;
+			objects = new ArrayList<WorldObject>(1);
+			index.put(name, objects);
+		}
+		if (add && inPlace)
+			insert(objects, object);
+		else if (add)
+			objects.add(object);
+		else {
+			objects.remove(object);
+			if (objects.isEmpty())
+				index.remove(name);
+		}
+	}
+	
+	private void update(Map<String, Map<String, List<WorldObject>>> index, String name, String verb, WorldObject object, boolean add, boolean inPlace)
+	{
+		Map<String, List<WorldObject>> verbs = index.get(name);
+		if (verbs == null)
+		{
+			if (!add)
+				return;
+			verbs = new HashMap<String, List<WorldObject>>();
+			index.put(name, verbs);
+		}
+		List<WorldObject> objects = verbs.get(verb);
+		if (objects == null)
+		{
+			if (!add)
+				return;
+			objects = new ArrayList<WorldObject>(1);
+			verbs.put(verb, objects);
+		}
+		if (add && inPlace)
+			insert(objects, object);
+		else if (add)
+			objects.add(object);
+		else {
+			objects.remove(object);
+			if (objects.isEmpty())
+			{
+				verbs.remove(verb);
+				if (verbs.isEmpty())
+					index.remove(name);
+			}
+		}
+	}
+}
@@ -21,6 +21,8 @@ package uk.co.gundry.david.loamie.mud.world;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
 import org.w3c.dom.Element;
@@ -28,6 +30,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import uk.co.gundry.david.loamie.mud.Game;
+import uk.co.gundry.david.loamie.mud.world.command.Command;
 
 /**
  * Class for a door. A WorldItem that conveys people from one room to another, one way only.
@@ -36,9 +39,15 @@ import uk.co.gundry.david.loamie.mud.Game;
  */
 public class Door extends WorldObject implements Serializable {
 	private static final int TYPE = 2;
+	private static final List<String> DOOR_VERBS = Arrays.asList("use", "go");
 	private static final long serialVersionUID = 1L;
 	private Room target;
 	private String targetName;
+	/**
+	 * The id of the room the door leads to, as loaded, or -1 if it was saved before rooms
+	 * had ids and only its target name is known.
+	 */
+	private int targetId = -1;
 	
 	public Door(String name, String description, Room target){
 		super(name, description);
@@ -75,26 +84,41 @@ public class Door extends WorldObject implements Serializable {
 		return targetName;
 	}
 	
-	public boolean findTarget(List<Room> roomList){
-		boolean foundIt = false;
-		for (Room room: roomList)
-		{
-			if (room.getName().equals(targetName))
-			{
-				foundIt = true;
-				this.target = room;
-			}
-		}
-		if (!foundIt)
-			return false;
+	public int getTargetId()
+	{
+		return targetId;
+	}
+	
+	/**
+	 * Links the door to the room in the world with its target id. Doors saved before rooms had
+	 * ids are linked to the room named by their target name instead.
+	 * 
+	 * @param world
+	 * @return - false if there is no such room
+	 */
+	public boolean findTarget(World world){
+		Room room;
+		if (targetId >= 0)
+			room = world.getRoom(targetId);
 		else
-			return true;
+			room = world.getRoomByName(targetName);
+		if (room == null)
+			return false;
+		this.target = room;
+		return true;
 	}
 
-	public int interpretCommand(String command, GameCharacter actor) {
-		if (command.toLowerCase().equals("use") || command.toLowerCase().startsWith("go"))
+	/**
+	 * Doors also understand any verb starting with "go", but only these are indexed.
+	 */
+	public Collection<String> getVerbs() {
+		return DOOR_VERBS;
+	}
+
+	public int interpretCommand(Command command, GameCharacter actor) {
+		if (command.is("use") || command.startsWith("go"))
 		{			
-			if (actor.moveTo(target))
+			if (target != null && target.getId() >= 0 && actor.moveTo(target))
 				actor.getLastRoom().receiveMessage(actor.getName() + " goes through the " + this.getName() );
 			else
 				actor.receiveMessage("This door doesn't go anywhere.");
@@ -107,8 +131,8 @@ public class Door extends WorldObject implements Serializable {
 		ps.println("		<door>");
 		ps.println("			<name>"+this.getName()+"</name>");
 		ps.println("			<description>"+this.getDescription()+"</description>");
-		if ((this.getTarget() != null) && (!this.getTarget().getName().startsWith("DELETE")))
-			ps.println("			<target>"+this.getTarget().getName()+"</target>");
+		if ((this.getTarget() != null) && (this.getTarget().getId() >= 0))
+			ps.println("			<target-id>"+this.getTarget().getId()+"</target-id>");
 		if (this.getSynonyms() != null)
 			for (String syn: this.getSynonyms())
 			{
@@ -127,10 +151,7 @@ public class Door extends WorldObject implements Serializable {
         
         if (totalDoors > 0)
         {
-	    	Element doorElement = (Element)doorList.item(0);
-	    	NodeList childDoorList = doorElement.getChildNodes();
-	    	
-	    	for(int j=0; j<childDoorList.getLength(); j++){
+	    	for(int j=0; j<doorList.getLength(); j++){
 	    		if (doorList.item(j) != null)
 	    		{
 	        		Node firstDoorNode = doorList.item(j);
@@ -157,6 +178,20 @@ public class Door extends WorldObject implements Serializable {
 	                    String doorDesc = ((Node)textDoorDescList.item(0)).getNodeValue().trim();
 	                    
 	                    //-------
+	                    int doorTargetId = -1;
+	                    NodeList doorTargetIdList = firstDoorElement.getElementsByTagName("target-id");
+	                    if (doorTargetIdList.getLength() >0)
+	                    {
+		                    Element doorTargetIdElement = (Element)doorTargetIdList.item(0);
+		                    
+		                    NodeList textDoorTargetIdList =  doorTargetIdElement.getChildNodes();
+		                    if (Game.isDebug())
+		        	        	Game.logMessage("	Door : Target Id : " + ((Node)textDoorTargetIdList.item(0)).getNodeValue().trim());
+		                    doorTargetId = Integer.parseInt(((Node)textDoorTargetIdList.item(0)).getNodeValue().trim());
+	                    }
+	                    
+	                    //-------
+	                    // Only saves from before rooms had ids name the target room
 	                    String doorTarget = "";
 	                    NodeList doorTargetList = firstDoorElement.getElementsByTagName("target");
 	                    if (doorTargetList.getLength() >0)
@@ -189,7 +224,9 @@ public class Door extends WorldObject implements Serializable {
 	                    }
 	                    	
 	                    
-	                    newDoors.add(new Door(doorName,doorDesc,doorTarget,newSyns));
+	                    Door newDoor = new Door(LoadPool.share(doorName),LoadPool.share(doorDesc),LoadPool.share(doorTarget),LoadPool.share(newSyns));
+	                    newDoor.targetId = doorTargetId;
+	                    newDoors.add(newDoor);
 		                }
 	        	}
 	        }
@@ -30,6 +30,8 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import uk.co.gundry.david.loamie.mud.Game;
+import uk.co.gundry.david.loamie.mud.net.Message;
+import uk.co.gundry.david.loamie.mud.world.command.Command;
 
 /**
  * Represents a character in the game. Subclasses may represent player characters or
@@ -94,6 +96,17 @@ public class GameCharacter extends WorldObject implements Serializable
 		this.lastRoomID = lastRm;
 	}
 
+	/**
+	 * Renames the character, keeping the world's directory of characters up to date.
+	 */
+	public void setName(String newName)
+	{
+		String oldName = getName();
+		super.setName(newName);
+		if (Game.getWorld() != null)
+			Game.getWorld().characterRenamed(this, oldName);
+	}
+	
 	public WorldObject getLastRoom()
 	{
 		return lastRoom;
@@ -118,24 +131,24 @@ public class GameCharacter extends WorldObject implements Serializable
 		return TYPE;
 	}
 	
+	/**
+	 * Characters hear what goes on in the room they are in, whether a player or the game is
+	 * controlling them.
+	 */
+	public boolean hearsMessages() {
+		return true;
+	}
+	
 	/**
 	 * Moves this character to the given room, notifying the current location and destination
-	 * as appropriate, and updating lastRoom.
+	 * as appropriate, and remembering the room it left as lastRoom.
 	 * 
 	 * @param location
 	 */
-	public boolean moveTo(WorldObject location)
+	protected void changeLocation(WorldObject location)
 	{
-		if (location != null)
-		{
-			if (this.getLocation() != null)
-				this.getLocation().objectExited(this);
-			this.lastRoom = this.getLocation();
-			setLocation(location);
-			location.objectEntered(this);
-			return true;
-		}
-		return false;
+		this.lastRoom = this.getLocation();
+		super.changeLocation(location);
 	}
 	
 	/**
@@ -147,9 +160,14 @@ public class GameCharacter extends WorldObject implements Serializable
 	{
 		getLocation().receiveMessageFromPlayer(String.format("%s says, \"%s\"", this.getName(), text));
 	}
+	/**
+	 * Shouts the given text. This is heard through the whole zone the character is in.
+	 * 
+	 * @param text  Words to shout
+	 */
 	public void shout(String text)
 	{
-		getLocation().receiveMessageFromPlayer(String.format("%s shouts, \"%s\"", this.getName(), text));
+		getLocation().receiveShout(Message.fromPlayer(String.format("%s shouts, \"%s\"", this.getName(), text)));
 	}
 	public void rpAction(String text)
 	{
@@ -187,10 +205,11 @@ public class GameCharacter extends WorldObject implements Serializable
 	public String describeContents()
 	{
 		String contentsText = "";
-		if (getContents().size() > 0)
+		List<WorldObject> objects = readContents();
+		if (objects.size() > 0)
 		{
 			contentsText += "\nInventory: ";
-			for (WorldObject object: getContents())
+			for (WorldObject object: objects)
 				contentsText += object.getName() + ", ";
 		}
 		else
@@ -209,25 +228,9 @@ public class GameCharacter extends WorldObject implements Serializable
 		return "Hitpoints: " + this.hitPoints + "\nXp: " + this.xp;
 	}
 
-	public WorldObject getContentsByName(String name)
-	{
-	    for (WorldObject object: getContents()){
-	    	if (object.getName().toLowerCase().equals(name.toLowerCase()))
-	    		return object;
-	    }
-	    for (WorldObject object: getContents()){
-	    	if (object.getSynonyms() != null)
-		    	for (String text: object.getSynonyms()){
-		    		if (text.toLowerCase().equals(name.toLowerCase()))
-		    			return object;
-	    	}
-	    }
-	    return null;
-	}
-	
-	public int interpretCommand(String command, GameCharacter actor)
+	public int interpretCommand(Command command, GameCharacter actor)
 	{
-		if (command.toLowerCase().startsWith("attack "))
+		if (command.startsWith("attack "))
 		{
 			this.hitPoints -= 1;
 			actor.getLocation().receiveMessage(actor.getName() + " attacks " + this.getName() + ".");
@@ -243,7 +246,7 @@ public class GameCharacter extends WorldObject implements Serializable
 	 */
 	public void objectEntered(WorldObject object)
 	{
-		getContents().add(object);		
+		addToContents(object);
 		this.receiveMessage(String.format("You have gained a %s.", object.getName()));
 	}
 	
@@ -253,7 +256,7 @@ public class GameCharacter extends WorldObject implements Serializable
 	 */
 	public void objectExited(WorldObject object)
 	{
-		getContents().remove(object);
+		removeFromContents(object);
 		this.receiveMessage(String.format("You have lost a %s.", object.getName()));
 	}
 
@@ -286,28 +289,10 @@ public class GameCharacter extends WorldObject implements Serializable
 		ps.println("			<description>"+this.getDescription()+"</description>");
 		ps.println("			<hp>" + hitPoints + "</hp>");
 		ps.println("			<xp>" + xp + "</xp>");
-		boolean foundIt = false;
-		for (int i=0;i<Game.getWorld().getRooms().size();i++)
-		{
-			if (Game.getWorld().getRooms().get(i).getName().equals(getLocation().getName()))
-			{
-				foundIt = true;
-				ps.println("			<location>" + i + "</location>");
-				if (foundIt)
-					break;
-			}
-		}
-		foundIt = false;
-		for (int i=0;i<Game.getWorld().getRooms().size();i++)
-		{
-			if (Game.getWorld().getRooms().get(i).getName().equals(lastRoom.getName()))
-			{
-				foundIt = true;
-				ps.println("			<last-room>" + i + "</last-room>");
-			}
-			if (foundIt)
-				break;
-		}
+		if ((getLocation() instanceof Room) && ((Room) getLocation()).getId() >= 0)
+			ps.println("			<location>" + ((Room) getLocation()).getId() + "</location>");
+		if ((lastRoom instanceof Room) && ((Room) lastRoom).getId() >= 0)
+			ps.println("			<last-room>" + ((Room) lastRoom).getId() + "</last-room>");
 		
 		for (String syn: this.getSynonyms())
 		{
@@ -365,9 +350,7 @@ public class GameCharacter extends WorldObject implements Serializable
     	Element gcElement = (Element)gcList.item(0);
     	if (gcElement != null)
 		{
-    	NodeList childItemList = gcElement.getChildNodes();
-    	
-    	for(int j=0; j<childItemList.getLength(); j++){
+    	for(int j=0; j<gcList.getLength(); j++){
     		if (gcList.item(j) != null)
     		{
         		Node firstgcNode = gcList.item(j);
@@ -422,12 +405,12 @@ public class GameCharacter extends WorldObject implements Serializable
 	                    if (Game.isDebug())
 	        	        	Game.logMessage("	GC : Location : " + ((Node)tnList.item(0)).getNodeValue().trim());
 	                    int loc = Integer.parseInt(((Node)tnList.item(0)).getNodeValue().trim());
-	                    gcLoc = Game.getWorld().getRooms().get(loc);
+	                    gcLoc = Game.getWorld().getRoom(loc);
                     }
                     else
                     {
                     	Game.logError("<location> missing for GC " + gcName + "Setting to Limbo.", null);
-                    	gcLoc = Game.getWorld().getRooms().get(0);
+                    	gcLoc = Game.getWorld().getRoom(0);
                     }
                     
                     //-------
@@ -455,7 +438,7 @@ public class GameCharacter extends WorldObject implements Serializable
                     
 		            List<String> newSyns = new ArrayList<String>();
 		            
-                    for(int l=0; l<gcList.getLength(); l++){
+                    for(int l=0; l<synList.getLength(); l++){
                     	if (synList.item(l) != null)
                 		{
 	                    	Element synElement = (Element)synList.item(l);
@@ -465,7 +448,7 @@ public class GameCharacter extends WorldObject implements Serializable
                 		}
                     }
                         
-                    newGCs.add(new GameCharacter(gcName,gcDesc,newSyns,hp,xp,gcLastRm,gcLoc));
+                    newGCs.add(new GameCharacter(gcName,LoadPool.share(gcDesc),LoadPool.share(newSyns),hp,xp,gcLastRm,gcLoc));
 	                }
 	        	}
         	}
@@ -474,7 +457,9 @@ public class GameCharacter extends WorldObject implements Serializable
 	}
 
 	public void lastRoomFromID() {
-		this.lastRoom = Game.getWorld().getRooms().get(lastRoomID);
+		this.lastRoom = Game.getWorld().getRoom(lastRoomID);
+		if (this.lastRoom == null)
+			this.lastRoom = Game.getWorld().getRoom(0);
 	}
 
 	public static int getStaticType() {
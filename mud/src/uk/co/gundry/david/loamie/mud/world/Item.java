@@ -28,7 +28,9 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import uk.co.gundry.david.loamie.mud.Game;
+import uk.co.gundry.david.loamie.mud.Script;
 import uk.co.gundry.david.loamie.mud.ScriptInterpreter;
+import uk.co.gundry.david.loamie.mud.world.command.Command;
 
 /**
  * Represents an item. Things which are not rooms, doors or characters. Things which can be picked up and dropped.
@@ -38,8 +40,20 @@ import uk.co.gundry.david.loamie.mud.ScriptInterpreter;
 public class Item extends WorldObject implements Serializable {
 
 	private static final int TYPE = 1;
+	/**
+	 * Shared by every Item, since it keeps no state between scripts.
+	 */
+	private static final ScriptInterpreter interpreter = new ScriptInterpreter();
+	/**
+	 * Verbs every Item understands, unless its commands Map overrides them.
+	 */
+	private static final List<String> ITEM_VERBS = Arrays.asList("pick up", "get", "grab", "take", "drop", "put down", "lose");
 	private static final long serialVersionUID = 1L;
-	private Map<String, String> commands = new HashMap<String,String>();
+	private Map<String, String> commands = Collections.emptyMap();
+	/**
+	 * The command scripts compiled, by label. Compiled whenever the commands are set.
+	 */
+	private transient Map<String, Script> scripts;
 	
 
 	public Item(String name, String description, WorldObject location)
@@ -62,11 +76,13 @@ public class Item extends WorldObject implements Serializable {
 	{
 		super(name,description,synonyms,location);
 		this.commands = commands;
+		this.scripts = compile(commands);
 	}
 
 	public Item(String itemName, String itemDesc, List<String> newSyns, Map<String, String> newComms) {
 		super(itemName,itemDesc,newSyns);
 		this.commands = newComms;
+		this.scripts = compile(newComms);
 	}
 
 	public Item() {
@@ -74,7 +90,36 @@ public class Item extends WorldObject implements Serializable {
 	}
 	
 	public void setCommands(HashMap<String,String> commands){
+		namesChanging();
 		this.commands = commands;
+		this.scripts = compile(commands);
+		namesChanged();
+	}
+	
+	/**
+	 * Compiles each of the command scripts.
+	 * 
+	 * @param commands
+	 */
+	private static Map<String, Script> compile(Map<String, String> commands)
+	{
+		if (commands == null || commands.isEmpty())
+			return Collections.emptyMap();
+		Map<String, Script> scripts = LoadPool.getScripts(commands);
+		if (scripts != null)
+			return scripts;
+		scripts = new HashMap<String, Script>();
+		for (Entry<String, String> command: commands.entrySet())
+			scripts.put(command.getKey(), ScriptInterpreter.compile(command.getValue()));
+		LoadPool.putScripts(commands, scripts);
+		return scripts;
+	}
+	
+	public Collection<String> getVerbs() {
+		List<String> verbs = new ArrayList<String>(ITEM_VERBS);
+		for (String label: commands.keySet())
+			verbs.add(label.toLowerCase());
+		return verbs;
 	}
 
 	public int getType(){
@@ -87,32 +132,45 @@ public class Item extends WorldObject implements Serializable {
 	 * either a command script for that verb, or inbuilt code, in that order.
 	 * Thus 'pick up' can be overridden by using the same verb for a script.
 	 * 
-	 * @param text
+	 * @param command
 	 * @param actor
 	 */
-	public int interpretCommand(String text, GameCharacter actor) {
-		if (commands.containsKey(text)){
-			String[] todos = commands.get(text).replace("$_actor", actor.getName()).split("; ");
-			for (int i=0;i<todos.length;i++)
-				this.processCommand(todos[i], actor);
+	public int interpretCommand(Command command, GameCharacter actor) {
+		if (scripts == null)
+			scripts = compile(commands);
+		Script script = scripts.get(command.getText());
+		if (script != null){
+			script.run(this, actor);
 			return 1;
 		}
 			
 		// These commands are global to all Items, unless they are overridden by using the same command in the Items commands Map, and getting it to do something different.
-		if (text.toLowerCase().equals("pick up") || text.toLowerCase().equals("get") || text.toLowerCase().equals("grab") || text.toLowerCase().equals("take")){
-			this.processCommand(text, actor);
+		if (command.is("pick up") || command.is("get") || command.is("grab") || command.is("take")){
+			this.processCommand(command, actor);
 			return 1;
 		} else 
-		if (text.toLowerCase().equals("drop") || text.toLowerCase().equals("put down") || text.toLowerCase().equals("lose")){
-			this.processCommand(text, actor);
+		if (command.is("drop") || command.is("put down") || command.is("lose")){
+			this.processCommand(command, actor);
 			return 1;
 		} else
 			return 0;
 	}
 
-	public int processCommand(String command, GameCharacter actor) {
-		ScriptInterpreter si = new ScriptInterpreter();
-		return si.interpret(command, this, actor);
+	/**
+	 * Returns true if the item's script for the command shouts, and so can be heard in other
+	 * rooms than the one it is used in.
+	 * 
+	 * @param command
+	 */
+	public boolean shouts(Command command) {
+		if (scripts == null)
+			scripts = compile(commands);
+		Script script = scripts.get(command.getText());
+		return script != null && script.shouts();
+	}
+
+	public int processCommand(Command command, GameCharacter actor) {
+		return interpreter.interpret(command, this, actor);
 	}
 
 	/**
@@ -170,9 +228,7 @@ public class Item extends WorldObject implements Serializable {
     	Element itemElement = (Element)itemList.item(0);
     	if (itemElement != null)
 		{
-    	NodeList childItemList = itemElement.getChildNodes();
-    	
-    	for(int j=0; j<childItemList.getLength(); j++){
+    	for(int j=0; j<itemList.getLength(); j++){
     		if (itemList.item(j) != null)
     		{
         		Node firstItemNode = itemList.item(j);
@@ -207,7 +263,7 @@ public class Item extends WorldObject implements Serializable {
                     
 		            List<String> newSyns = new ArrayList<String>();
 		            
-                    for(int l=0; l<itemList.getLength(); l++){
+                    for(int l=0; l<synList.getLength(); l++){
                     	if (synList.item(l) != null)
                 		{
 	                    	Element synElement = (Element)synList.item(l);
@@ -225,7 +281,7 @@ public class Item extends WorldObject implements Serializable {
                     
 		            Map<String,String> newComms = new HashMap<String,String>();
 		            
-                    for(int l=0; l<itemList.getLength(); l++){
+                    for(int l=0; l<commList.getLength(); l++){
                     	if (commList.item(l) != null)
                 		{
                     		Node firstCommNode = commList.item(l);
@@ -257,7 +313,7 @@ public class Item extends WorldObject implements Serializable {
      		        
                     }	
                     
-                    newItems.add(new Item(itemName,itemDesc,newSyns,newComms));
+                    newItems.add(new Item(LoadPool.share(itemName),LoadPool.share(itemDesc),LoadPool.share(newSyns),LoadPool.share(newComms)));
 	                }
 	        	}
         	}
@@ -0,0 +1,152 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.world;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.co.gundry.david.loamie.mud.Game;
+import uk.co.gundry.david.loamie.mud.Script;
+
+/**
+ * While a world is being loaded, hands out one shared copy of each name, description, synonym
+ * list and command map, so that a thousand copies of the same sword cost little more than one.
+ * The shared lists and maps cannot be changed; objects which are edited are given new ones.
+ * 
+ * Outside of loading, or when the world is not compact, values are passed back as they are.
+ * 
+ * @author David Gundry
+ */
+public final class LoadPool
+{
+	private static Map<Object, Object> values;
+	private static Map<Map<String, String>, Map<String, Script>> scripts;
+	
+	private LoadPool()
+	{
+	}
+	
+	/**
+	 * Starts sharing values, if the world is compact.
+	 */
+	static synchronized void begin()
+	{
+		if (Game.isCompactWorld())
+		{
+			values = new HashMap<Object, Object>();
+			scripts = new HashMap<Map<String, String>, Map<String, Script>>();
+		}
+	}
+	
+	/**
+	 * Stops sharing values, and lets go of the pool. The values already shared stay shared.
+	 */
+	static synchronized void end()
+	{
+		values = null;
+		scripts = null;
+	}
+	
+	/**
+	 * Returns the shared copy of the string.
+	 * 
+	 * @param text
+	 */
+	public static synchronized String share(String text)
+	{
+		if (values == null || text == null)
+			return text;
+		return (String) intern(text, text);
+	}
+	
+	/**
+	 * Returns a shared, unchangeable copy of the list of synonyms, made of shared strings.
+	 * 
+	 * @param synonyms
+	 */
+	@SuppressWarnings("unchecked")
+	public static synchronized List<String> share(List<String> synonyms)
+	{
+		if (values == null || synonyms == null)
+			return synonyms;
+		if (synonyms.isEmpty())
+			return Collections.emptyList();
+		List<String> copy = new ArrayList<String>(synonyms.size());
+		for (String synonym: synonyms)
+			copy.add(share(synonym));
+		return (List<String>) intern(copy, Collections.unmodifiableList(copy));
+	}
+	
+	/**
+	 * Returns a shared, unchangeable copy of the map of command labels to scripts, made of
+	 * shared strings.
+	 * 
+	 * @param commands
+	 */
+	@SuppressWarnings("unchecked")
+	public static synchronized Map<String, String> share(Map<String, String> commands)
+	{
+		if (values == null || commands == null)
+			return commands;
+		if (commands.isEmpty())
+			return Collections.emptyMap();
+		Map<String, String> copy = new HashMap<String, String>(commands.size() * 2);
+		for (Map.Entry<String, String> command: commands.entrySet())
+			copy.put(share(command.getKey()), share(command.getValue()));
+		return (Map<String, String>) intern(copy, Collections.unmodifiableMap(copy));
+	}
+	
+	/**
+	 * Returns the scripts already compiled for an equal map of commands, or null if there are none
+	 * or values are not being shared.
+	 * 
+	 * @param commands
+	 */
+	static synchronized Map<String, Script> getScripts(Map<String, String> commands)
+	{
+		return (scripts == null) ? null : scripts.get(commands);
+	}
+	
+	/**
+	 * Remembers the scripts compiled for a map of commands, so equal maps can share them.
+	 * 
+	 * @param commands
+	 * @param compiled
+	 */
+	static synchronized void putScripts(Map<String, String> commands, Map<String, Script> compiled)
+	{
+		if (scripts != null)
+			scripts.put(commands, compiled);
+	}
+	
+	private static Object intern(Object key, Object value)
+	{
+		Object shared = values.get(key);
+		if (shared == null)
+		{
+			values.put(key, value);
+			shared = value;
+		}
+		return shared;
+	}
+}
@@ -18,6 +18,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package uk.co.gundry.david.loamie.mud.world;
 
+import uk.co.gundry.david.loamie.mud.net.Message;
 import uk.co.gundry.david.loamie.mud.net.SocketThread;
 
 /**
@@ -62,12 +63,7 @@ public final class PlayerCharacter extends GameCharacter
 	@Override
 	public void receiveMessage(String text)
 	{
-		if (thread != null){
-			String[] lines = text.split("[\\r\\n]+");
-			for(int i=0;i<lines.length;i++){
-				thread.sendMessage("          " + lines[i].replace("_"," "));
-			}
-		}
+		hear(Message.fromGame(text));
 	}
 	
 	/**
@@ -76,12 +72,19 @@ public final class PlayerCharacter extends GameCharacter
 	@Override
 	public void receiveMessageFromPlayer(String text)
 	{
-		if (thread != null){
-			String[] lines = text.split("[\\r\\n]+");
-			for(int i=0;i<lines.length;i++){
-				thread.sendMessage("                    " + lines[i].replace("_"," "));
-			}
-		}
+		hear(Message.fromPlayer(text));
+	}
+	
+	/**
+	 * If a thread is attached, queues the message on it, as it was laid out for everyone
+	 * who hears it.
+	 */
+	@Override
+	public void hear(Message message)
+	{
+		SocketThread connection = thread;
+		if (connection != null)
+			message.sendTo(connection);
 	}
 	
 	/**
@@ -95,6 +98,14 @@ public final class PlayerCharacter extends GameCharacter
 		receiveMessage("Welcome to the game, " + this.getName() + "!");
 	}
 	
+	/**
+	 * Returns true if someone is connected and controlling this character.
+	 */
+	public boolean isConnected()
+	{
+		return thread != null;
+	}
+	
 	/**
 	 * Called when the attached thread disconnects.	 
 	 */
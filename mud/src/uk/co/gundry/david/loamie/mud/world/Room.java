@@ -20,8 +20,13 @@ package uk.co.gundry.david.loamie.mud.world;
 
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 
+import uk.co.gundry.david.loamie.mud.Game;
+import uk.co.gundry.david.loamie.mud.net.Message;
+import uk.co.gundry.david.loamie.mud.world.command.Command;
+
 /**
  * Represents a room in the game world (that is, a location). Rooms can contain any world objects,
  * including other rooms (?).
@@ -32,6 +37,19 @@ public class Room extends WorldObject implements Serializable
 {
 	private static final long serialVersionUID = 1L;
 	private static final int TYPE = 2;
+	/**
+	 * The room's id in the world, or -1 if it is not in the world.
+	 */
+	private int id = -1;
+	/**
+	 * The zone the room is in, whose shouts it hears, or null if it is in none.
+	 */
+	private String zone;
+	/**
+	 * The channel for the contents which do something with messages, which messages to the
+	 * room go out on. Null until first needed.
+	 */
+	private transient volatile Channel channel;
 	
 	/**
 	 * Creates a room without setting any of the variables. The program will probably break if you
@@ -55,22 +73,164 @@ public class Room extends WorldObject implements Serializable
 	 */
 	public void receiveMessage(String text)
 	{
-		for (WorldObject object: getContents())
-			object.receiveMessage(text);
+		getChannel().publish(Message.fromGame(text));
 	}
 	
 	/**
 	 * When a message is received from a player, it is passed to the room's contents.
 	 */
 	public void receiveMessageFromPlayer(String text) {
-		for (WorldObject object: getContents())
-			object.receiveMessageFromPlayer(text);
+		getChannel().publish(Message.fromPlayer(text));
+	}
+	
+	/**
+	 * Passes a message, already made, on to the room's contents.
+	 */
+	public void hear(Message message) {
+		getChannel().publish(message);
+	}
+	
+	/**
+	 * Rooms pass messages on to what is in them.
+	 */
+	public boolean hearsMessages() {
+		return true;
+	}
+	
+	/**
+	 * Passes a shout to every room in the room's zone, or just to this room if it is in none.
+	 */
+	public void receiveShout(Message message) {
+		World world = Game.getWorld();
+		if (zone != null && world != null && world.getRoom(id) == this)
+			world.getZoneChannel(zone).publish(message);
+		else
+			hear(message);
+	}
+	
+	/**
+	 * Returns the zone the room is in, or null if it is in none.
+	 */
+	public String getZone() {
+		return zone;
+	}
+	
+	/**
+	 * Puts the room in a zone, or in none if the zone is null.
+	 * 
+	 * @param zone
+	 */
+	public void setZone(String zone) {
+		this.zone = zone;
+		if (id >= 0 && Game.getWorld() != null && Game.getWorld().getRoom(id) == this)
+			Game.getWorld().zonesChanged();
+	}
+	
+	/**
+	 * Returns the channel for the contents which hear messages, making it from the contents if
+	 * it has not been made. From then on things join it as they enter and leave as they go.
+	 */
+	public Channel getChannel()
+	{
+		Channel current = channel;
+		if (current != null)
+			return current;
+		// Locked in the same order as a move, which locks the room and then joins the channel
+		long stamp = ContainerLocks.lockRead(this);
+		try
+		{
+			synchronized (this)
+			{
+				if (channel == null)
+				{
+					Channel made = new Channel();
+					for (WorldObject object: new ArrayList<WorldObject>(getContents()))
+						if (object.hearsMessages())
+							made.subscribe(object);
+					channel = made;
+				}
+				return channel;
+			}
+		} finally {
+			ContainerLocks.unlockRead(this, stamp);
+		}
+	}
+	
+	/**
+	 * Subscribes the object to the room's channel, if it has been made and the object hears
+	 * messages. It may be subscribed already if the channel was made while it was entering.
+	 * 
+	 * @param object
+	 */
+	private synchronized void listenerEntered(WorldObject object)
+	{
+		if (channel != null && object.hearsMessages())
+			channel.subscribe(object);
+	}
+	
+	/**
+	 * Takes the object off the room's channel, if it is on it.
+	 * 
+	 * @param object
+	 */
+	private synchronized void listenerLeft(WorldObject object)
+	{
+		if (channel != null)
+			channel.unsubscribe(object);
+	}
+	
+	protected void addToContents(WorldObject object)
+	{
+		super.addToContents(object);
+		listenerEntered(object);
+	}
+	
+	protected void removeFromContents(WorldObject object)
+	{
+		super.removeFromContents(object);
+		listenerLeft(object);
+	}
+	
+	public boolean replaceContents(WorldObject object, WorldObject replacement)
+	{
+		if (!super.replaceContents(object, replacement))
+			return false;
+		listenerLeft(object);
+		listenerEntered(replacement);
+		return true;
+	}
+	
+	public void setContents(List<WorldObject> contents) {
+		super.setContents(contents);
+		channel = null;
 	}
 
 	public int getType(){
 		return TYPE;
 	}
 	
+	/**
+	 * Returns the room's id, which stays the same while it is in the world and is saved with it,
+	 * or -1 if it is not in the world (not yet added, or deleted).
+	 */
+	public int getId() {
+		return id;
+	}
+	
+	void setId(int id) {
+		this.id = id;
+	}
+	
+	/**
+	 * Renames the room, keeping the world's directory of rooms by name up to date.
+	 */
+	public void setName(String newName) {
+		String oldName = getName();
+		super.setName(newName);
+		if (id >= 0 && Game.getWorld() != null && Game.getWorld().getRoom(id) == this)
+			Game.getWorld().roomRenamed(this, oldName);
+	}
+	
 	/**
 	 * Gets the room to describe its doors.
 	 */
@@ -87,9 +247,9 @@ public class Room extends WorldObject implements Serializable
 		return text;
 	}
 	
-	public int processCommand(String command, GameCharacter actor)
+	public int processCommand(Command command, GameCharacter actor)
 	{
-		if (command.toLowerCase().startsWith("enter "))
+		if (command.startsWith("enter "))
 		{
 			actor.moveTo(this);
 			return 1;
@@ -105,18 +265,19 @@ public class Room extends WorldObject implements Serializable
 	public void saveStateToXML(PrintStream ps)
 	{
 		ps.println("	<room>");
+		ps.println("		<id>"+this.getId()+"</id>");
 		ps.println("		<name>"+this.getName()+"</name>");
 		ps.println("		<description>"+this.getDescription()+"</description>");
+		if (this.getZone() != null)
+			ps.println("		<zone>"+this.getZone()+"</zone>");
 		for (Door door: this.getDoors())
 		{
 			door.saveStateToXML(ps);
 		}
-		for (WorldObject cont: this.getContents())
-		{
-			if ((cont.getType() == 0) || (cont.getType() == 1 )){
-				cont.saveStateToXML(ps);
-			}
-		}
+		for (GameCharacter character: this.getGameCharacters())
+			character.saveStateToXML(ps);
+		for (Item item: this.getItems())
+			item.saveStateToXML(ps);
 		ps.println("	</room>");
 	}
 	
@@ -19,8 +19,16 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package uk.co.gundry.david.loamie.mud.world;
 
 import java.io.PrintStream;
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -28,6 +36,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import uk.co.gundry.david.loamie.mud.Game;
+import uk.co.gundry.david.loamie.mud.world.command.Command;
 import uk.co.gundry.david.loamie.mud.world.item.MapItem;
 
 /**
@@ -40,7 +49,34 @@ import uk.co.gundry.david.loamie.mud.world.item.MapItem;
 public class World extends WorldObject{
 
 	private static final long serialVersionUID = 1L;
+	/**
+	 * The rooms by id. A room's id is its position here; the position of a deleted room is
+	 * left empty (null) until the id is given to a new room.
+	 */
 	private List<Room> rooms = new ArrayList<Room>();
+	/**
+	 * The ids of deleted rooms, ready to be given out again.
+	 */
+	private transient Deque<Integer> freeIds;
+	/**
+	 * The rooms by name. Where rooms share a name, the one with the lowest id is the one found.
+	 * Made when first needed, with freeIds, and kept up to date as rooms are added, renamed and deleted.
+	 */
+	private transient Map<String, Room> roomsByName;
+	/**
+	 * A read-only view of the rooms, skipping empty ids.
+	 */
+	private transient Collection<Room> roomsView;
+	/**
+	 * Every character in the world, player or not, by lower case name. Made when first needed,
+	 * and kept up to date as characters are loaded, created, renamed and deleted.
+	 */
+	private transient Map<String, GameCharacter> charactersByName;
+	/**
+	 * The channel for each zone, which the rooms in it are subscribed to. Made when first needed,
+	 * and made again after rooms are added, deleted or moved between zones.
+	 */
+	private transient Map<String, Channel> zones;
 
 	private String goodbyeMessage = "";
 	private String welcomeMessage = "";
@@ -54,10 +90,7 @@ public class World extends WorldObject{
 		ps.println("	<welcome-message>" + welcomeMessage + "</welcome-message>");
 		ps.println("	<goodbye-message>" + goodbyeMessage + "</goodbye-message>");
 		for (Room room: getRooms())
-		{
-			if (!room.getName().startsWith("DELETE"))
-				room.saveStateToXML(ps);
-		}
+			room.saveStateToXML(ps);
 		ps.println("</world>");
 	}
 	
@@ -73,6 +106,7 @@ public class World extends WorldObject{
 	public void restoreStateFromXML(Document doc)
 	{
 			Game.setWorld(new World());
+			LoadPool.begin();
 			
 	        NodeList wmessageList = doc.getElementsByTagName("welcome-message");
             Element wmessageElement = (Element)wmessageList.item(0);
@@ -121,7 +155,16 @@ public class World extends WorldObject{
 	    	        	Game.logMessage("Description : " + ((Node)textDescList.item(0)).getNodeValue().trim());
 	                String thisDesc = ((Node)textDescList.item(0)).getNodeValue().trim();
 	
-	                Game.getWorld().getRooms().add(new Room(thisName,thisDesc));
+	                //-------
+	                Room room = new Room(thisName,thisDesc);
+	                NodeList zoneList = firstRoomElement.getElementsByTagName("zone");
+	                if (zoneList.getLength() > 0)
+	                	room.setZone(LoadPool.share(((Node)((Element)zoneList.item(0)).getChildNodes().item(0)).getNodeValue().trim()));
+	                NodeList idList = firstRoomElement.getElementsByTagName("id");
+	                if (idList.getLength() > 0)
+	                	Game.getWorld().putRoom(room, Integer.parseInt(((Node)((Element)idList.item(0)).getChildNodes().item(0)).getNodeValue().trim()));
+	                else
+	                	Game.getWorld().addRoom(room); // saved before rooms had ids
 	                
 	                //------ LOAD DOORS ------- //
 	            	List<Door> newDoors = Door.loadStateFromXML(firstRoomElement);
@@ -140,33 +183,42 @@ public class World extends WorldObject{
 	            	
 	            	
 	                for (int k=0; k<newDoors.size();k++)
-	                	Game.getWorld().getRooms().get(Game.getWorld().getRooms().size()-1).objectEntered(newDoors.get(k));
+	                	room.objectEntered(newDoors.get(k));
 	                for (int k=0; k<newItems.size();k++)
-	                	newItems.get(k).moveTo(Game.getWorld().getRooms().get(Game.getWorld().getRooms().size()-1));
+	                	newItems.get(k).moveTo(room);
 	                for (int k=0; k<newMapItems.size();k++)
-	                	newMapItems.get(k).moveTo(Game.getWorld().getRooms().get(Game.getWorld().getRooms().size()-1));
-	                for (int k=0; k<newGCs.size();k++)
-	                	newGCs.get(k).moveTo(Game.getWorld().getRooms().get(0));
+	                	newMapItems.get(k).moveTo(room);
+	                for (int k=0; k<newGCs.size();k++){
+	                	newGCs.get(k).moveTo(Game.getWorld().getRoom(0));
+	                	Game.getWorld().addCharacter(newGCs.get(k));
+	                }
 	                
 	            }
 	
 	        }
 	        
+	        // Goes through the contents rather than getDoors, which would index every room
 	        for (Room room: Game.getWorld().getRooms())
 	        {
-	        	for (Door door: room.getDoors())
+	        	for (WorldObject object: room.getContents())
 	        	{
-	        		if (!door.findTarget(Game.getWorld().getRooms()))
+	        		if (!(object instanceof Door))
+	        			continue;
+	        		Door door = (Door) object;
+	        		if (!door.findTarget(Game.getWorld()))
 	        		{
-	        			Game.logError("Warning: Failed at door " + door.getName() + " in room " + room.getName() + " due to bad target name " + door.getTargetName(),null);
+	        			Game.logError("Warning: Failed at door " + door.getName() + " in room " + room.getName() + " due to bad target " + ((door.getTargetId() >= 0) ? "id " + door.getTargetId() : "name " + door.getTargetName()),null);
 	        		//	return null;
 	        		}
 	        	}
 	        }
 	        
+	        for (GameCharacter gc: Game.getWorld().getCharacters().values())
+	        	gc.lastRoomFromID();
+	        
+	        LoadPool.end();
 	        for (Room room: Game.getWorld().getRooms())
-	        	for (GameCharacter gc: room.getGameCharacters())
-	        		gc.lastRoomFromID();
+	        	room.trimContents();
 	        
 	    /*    
 			// Bert as yet not in any save file
@@ -193,15 +245,309 @@ public class World extends WorldObject{
 	 * 
 	 * @param rooms - the new list of rooms
 	 */
-	public void setRooms(List<Room> rooms) {
-		this.rooms = rooms;
+	public synchronized void setRooms(List<Room> rooms) {
+		this.rooms = new ArrayList<Room>(rooms);
+		this.roomsByName = null;
+	}
+
+	/**
+	 * Get all the rooms in the world, in order of id. The collection cannot be changed; use addRoom
+	 * and removeRoom, so that rooms can be found by name and id.
+	 */
+	public Collection<Room> getRooms() {
+		if (roomsView == null)
+			roomsView = new RoomsView();
+		return roomsView;
+	}
+	
+	/**
+	 * Adds a room to the world, giving it the id of a deleted room if there is one, or else the next id.
+	 * 
+	 * @param room - the new room
+	 */
+	public synchronized void addRoom(Room room) {
+		buildDirectory();
+		if (freeIds.isEmpty())
+		{
+			room.setId(rooms.size());
+			rooms.add(room);
+		} else {
+			room.setId(freeIds.pop());
+			rooms.set(room.getId(), room);
+		}
+		name(room);
+		zones = null;
+	}
+	
+	/**
+	 * Puts a room into the world with the given id, as it was saved. Used when loading a world.
+	 * 
+	 * @param room - the new room
+	 * @param id
+	 */
+	synchronized void putRoom(Room room, int id) {
+		while (rooms.size() <= id)
+			rooms.add(null);
+		if (rooms.get(id) != null)
+			rooms.get(id).setId(-1);
+		room.setId(id);
+		rooms.set(id, room);
+		// Which ids are free is only known once the whole world is loaded
+		roomsByName = null;
+		zones = null;
+	}
+	
+	/**
+	 * Takes a room out of the world, so that its id can be given to a new room. Anything still in
+	 * the room is not moved, and doors leading to it lead nowhere. Characters whose last room it was
+	 * will go back to Limbo instead.
+	 * 
+	 * @param room
+	 * @return - false if the room is not in the world
+	 */
+	public synchronized boolean removeRoom(Room room) {
+		buildDirectory();
+		if (getRoom(room.getId()) != room)
+			return false;
+		rooms.set(room.getId(), null);
+		freeIds.push(room.getId());
+		unname(room, room.getName());
+		room.setId(-1);
+		zones = null;
+		for (GameCharacter character: getCharacters().values())
+			if (character.getLastRoom() == room)
+				character.setLastRoom(getRoom(0));
+		return true;
+	}
+	
+	/**
+	 * Returns the room with the given id, or null if there is none.
+	 * 
+	 * @param id
+	 */
+	public Room getRoom(int id) {
+		List<Room> rooms = this.rooms;
+		if (id < 0 || id >= rooms.size())
+			return null;
+		return rooms.get(id);
+	}
+	
+	/**
+	 * Returns the room with the given name, or null if there is none. The name must match exactly.
+	 * 
+	 * @param name
+	 */
+	public synchronized Room getRoomByName(String name) {
+		buildDirectory();
+		return roomsByName.get(name);
+	}
+	
+	/**
+	 * Called when a room in this world has been renamed, so that it is found by its new name and
+	 * no longer by its old one.
+	 * 
+	 * @param room
+	 * @param oldName
+	 */
+	synchronized void roomRenamed(Room room, String oldName) {
+		if (roomsByName == null)
+			return;
+		unname(room, oldName);
+		name(room);
+	}
+	
+	/**
+	 * Returns the channel for the rooms in the given zone. Publishing on it reaches everything
+	 * in those rooms which hears messages.
+	 * 
+	 * @param zone
+	 */
+	public synchronized Channel getZoneChannel(String zone) {
+		if (zones == null)
+		{
+			zones = new HashMap<String, Channel>();
+			for (Room room: getRooms())
+				if (room.getZone() != null)
+					zoneChannel(room.getZone()).subscribe(room);
+		}
+		return zoneChannel(zone);
+	}
+	
+	private Channel zoneChannel(String zone) {
+		Channel channel = zones.get(zone);
+		if (channel == null)
+		{
+			channel = new Channel();
+			zones.put(zone, channel);
+		}
+		return channel;
+	}
+	
+	/**
+	 * Called when a room in this world has moved into or out of a zone.
+	 */
+	synchronized void zonesChanged() {
+		zones = null;
+	}
+	
+	/**
+	 * Makes the directory of rooms by name and the list of free ids, if they have not been made
+	 * since the rooms were last set or loaded.
+	 */
+	private void buildDirectory() {
+		if (roomsByName != null)
+			return;
+		// A world restored from a serialised file may have rooms saved before they had ids
+		roomsByName = new HashMap<String, Room>();
+		freeIds = new ArrayDeque<Integer>();
+		for (int i=rooms.size()-1;i>=0;i--)
+		{
+			Room room = rooms.get(i);
+			if (room == null)
+				freeIds.push(i);
+			else {
+				room.setId(i);
+				if (room.getName() != null)
+					roomsByName.put(room.getName(), room);
+			}
+		}
+	}
+	
+	/**
+	 * Adds the room to the directory under its name, unless a room with a lower id has the name already.
+	 */
+	private void name(Room room) {
+		if (room.getName() == null)
+			return;
+		Room existing = roomsByName.get(room.getName());
+		if (existing == null || existing.getId() > room.getId())
+			roomsByName.put(room.getName(), room);
+	}
+	
+	/**
+	 * Removes the room from the directory under the given name, finding another room with the
+	 * name to take its place if there is one.
+	 */
+	private void unname(Room room, String name) {
+		if (name == null || roomsByName.get(name) != room)
+			return;
+		roomsByName.remove(name);
+		for (Room other: rooms)
+			if (other != null && other != room && name.equals(other.getName()))
+			{
+				roomsByName.put(name, other);
+				break;
+			}
+	}
+	
+	/**
+	 * The rooms in order of id, without the empty ids of deleted rooms.
+	 */
+	private class RoomsView extends AbstractCollection<Room>
+	{
+		public Iterator<Room> iterator() {
+			final List<Room> rooms = World.this.rooms;
+			return new Iterator<Room>() {
+				private int next = advance(0);
+				
+				private int advance(int i) {
+					while (i < rooms.size() && rooms.get(i) == null)
+						i++;
+					return i;
+				}
+				
+				public boolean hasNext() {
+					return next < rooms.size();
+				}
+				
+				public Room next() {
+					if (!hasNext())
+						throw new NoSuchElementException();
+					Room room = rooms.get(next);
+					next = advance(next + 1);
+					return room;
+				}
+				
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+		
+		public int size() {
+			synchronized (World.this) {
+				buildDirectory();
+				return rooms.size() - freeIds.size();
+			}
+		}
 	}
 
 	/**
-	 * Get a complete list of all the rooms in the world. 
+	 * Adds a character to the directory of characters, replacing any other character with the same name.
+	 * 
+	 * @param character
+	 */
+	public synchronized void addCharacter(GameCharacter character) {
+		getCharacters().put(character.getName().toLowerCase(), character);
+	}
+	
+	/**
+	 * Removes a character from the directory of characters, if it is there.
+	 * 
+	 * @param character
 	 */
-	public List<Room> getRooms() {
-		return rooms;
+	public synchronized void removeCharacter(GameCharacter character) {
+		if (character.getName() != null && getCharacters().get(character.getName().toLowerCase()) == character)
+			charactersByName.remove(character.getName().toLowerCase());
+	}
+	
+	/**
+	 * Returns the character with the given name, ignoring case, or null if there is none.
+	 * 
+	 * @param name
+	 */
+	public synchronized GameCharacter getCharacterByName(String name) {
+		return getCharacters().get(name.toLowerCase());
+	}
+	
+	/**
+	 * Returns true if the character with the given name is being played by someone connected to the server.
+	 * 
+	 * @param name
+	 */
+	public boolean isCharacterOnline(String name) {
+		GameCharacter character = getCharacterByName(name);
+		return (character instanceof PlayerCharacter) && ((PlayerCharacter) character).isConnected();
+	}
+	
+	/**
+	 * Called when a character has been renamed, so that it is found by its new name and no longer
+	 * by its old one.
+	 * 
+	 * @param character
+	 * @param oldName
+	 */
+	synchronized void characterRenamed(GameCharacter character, String oldName) {
+		if (charactersByName == null)
+			return;
+		if (oldName == null || charactersByName.get(oldName.toLowerCase()) != character)
+			return;
+		charactersByName.remove(oldName.toLowerCase());
+		if (character.getName() != null)
+			charactersByName.put(character.getName().toLowerCase(), character);
+	}
+	
+	private Map<String, GameCharacter> getCharacters() {
+		if (charactersByName == null)
+		{
+			// A world restored from a serialised file has no directory, so the rooms are searched once
+			charactersByName = new HashMap<String, GameCharacter>();
+			for (Room room: getRooms())
+				for (WorldObject object: room.getContents())
+					if ((object instanceof GameCharacter) && object.getName() != null)
+						charactersByName.put(object.getName().toLowerCase(), (GameCharacter) object);
+		}
+		return charactersByName;
 	}
 
 	/**
@@ -275,17 +621,22 @@ public class World extends WorldObject{
 	/**
 	 * This is intentionally not implemented by World.
 	 */
-	public int interpretCommand(String text, GameCharacter actor) {return 0;}
+	public int interpretCommand(Command command, GameCharacter actor) {return 0;}
 
 	/**
 	 * This is intentionally not implemented by World.
 	 */
-	public void listenToCommand(String command, PlayerCharacter actor) {	}
+	public void listenToCommand(Command command, PlayerCharacter actor) {	}
 
 	/**
 	 * This is intentionally not implemented by World.
 	 */
 	public boolean moveTo(WorldObject location) {return false;}
+	
+	/**
+	 * This is intentionally not implemented by World.
+	 */
+	public boolean moveFrom(WorldObject from, WorldObject location) {return false;}
 
 	/**
 	 * This is intentionally not implemented by World.
@@ -300,7 +651,7 @@ public class World extends WorldObject{
 	/**
 	 * This is intentionally not implemented by World.
 	 */
-	public int processCommand(String command, GameCharacter actor) {return 0;}
+	public int processCommand(Command command, GameCharacter actor) {return 0;}
 
 	/**
 	 * This is intentionally not implemented by World.
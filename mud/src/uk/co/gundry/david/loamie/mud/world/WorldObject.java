@@ -21,9 +21,13 @@ package uk.co.gundry.david.loamie.mud.world;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import uk.co.gundry.david.loamie.mud.Game;
+import uk.co.gundry.david.loamie.mud.net.Message;
+import uk.co.gundry.david.loamie.mud.world.command.Command;
 
 /**
  * Represents an abstract "thing" in the world tree.
@@ -36,8 +40,15 @@ public class WorldObject implements Serializable
 	private String name;
 	private String description;
 	private WorldObject location;
-	private List<String> synonyms = new ArrayList<String>();
-	private List<WorldObject> contents = new ArrayList<WorldObject>();
+	private List<String> synonyms = Collections.emptyList();
+	/**
+	 * Null until something enters, since most objects never contain anything.
+	 */
+	private List<WorldObject> contents;
+	/**
+	 * Index of the contents by name and verb, made when first searched.
+	 */
+	private transient ContentsIndex contentsIndex;
 	
 	
 	private static final long serialVersionUID = 1L;
@@ -78,6 +89,39 @@ public class WorldObject implements Serializable
 	public void receiveMessageFromPlayer(String text) {
 	}
 	
+	/**
+	 * Called when a message comes to the object on a channel it is subscribed to. Passes the
+	 * text to receiveMessage or receiveMessageFromPlayer; objects which can use the message
+	 * as it is, laid out once for everyone, override this instead.
+	 * 
+	 * @param message
+	 */
+	public void hear(Message message) {
+		if (message.isFromPlayer())
+			receiveMessageFromPlayer(message.getText());
+		else
+			receiveMessage(message.getText());
+	}
+	
+	/**
+	 * Called when something in this object shouts. Rooms pass shouts to their whole zone;
+	 * anything else just hears them.
+	 * 
+	 * @param message
+	 */
+	public void receiveShout(Message message) {
+		hear(message);
+	}
+	
+	/**
+	 * Returns true if receiveMessage and receiveMessageFromPlayer do anything, so that rooms
+	 * need only pass messages to the objects which hear them. Objects which override either
+	 * must override this to return true.
+	 */
+	public boolean hearsMessages() {
+		return false;
+	}
+	
 	/**
 	 * Returns the object's name
 	 */
@@ -103,7 +147,9 @@ public class WorldObject implements Serializable
 	 * Changes the object's name to the one supplied.
 	 */
 	public void setName(String newName) {
+		namesChanging();
 		this.name = newName;
+		namesChanged();
 	}
 	
 	/**
@@ -118,10 +164,11 @@ public class WorldObject implements Serializable
 	 */
 	public String describeContents() {
 		String contentsText = "";
-		if (getContents().size() > 0)
+		List<WorldObject> objects = readContents();
+		if (objects.size() > 0)
 		{
 			contentsText += "\nContents: ";
-			for (WorldObject object: getContents())
+			for (WorldObject object: objects)
 				contentsText += object.getName() + ", ";
 		}
 		return contentsText;
@@ -147,7 +194,7 @@ public class WorldObject implements Serializable
 	 * @param object - the object that has left
 	 */
 	public void objectExited(WorldObject object) {
-		getContents().remove(object);
+		removeFromContents(object);
 		this.receiveMessage(String.format("%s has left.", object.getName()));
 	}
 	
@@ -158,7 +205,7 @@ public class WorldObject implements Serializable
 	 * @param object - the object that entered
 	 */
 	public void objectEntered(WorldObject object) {
-		getContents().add(object);		
+		addToContents(object);
 		object.receiveMessage("\nYou have entered " + this.name);
 		this.receiveMessage(String.format("%s has entered.", object.getName()));
 	}
@@ -184,13 +231,22 @@ public class WorldObject implements Serializable
 	 * Called when a verb is performed upon this object.
 	 * It checks if this object knows what the verb is, and if so, it does something.
 	 *
-	 * @param command
+	 * @param command - the command without the object's name
 	 * @param actor
 	 */
-	public int interpretCommand(String text, GameCharacter actor) {
+	public int interpretCommand(Command command, GameCharacter actor) {
 		return 0;
 	}
 	
+	/**
+	 * Returns the verbs, in lower case, that interpretCommand() understands. Commands whose
+	 * verb is not listed may still be understood, but objects can only be found by verb
+	 * through the contents index if they list it.
+	 */
+	public Collection<String> getVerbs() {
+		return Collections.emptyList();
+	}
+	
 	/**
 	 * Calls when this object performs an action itself. Eg. A socket sends a command,
 	 *  or an Item sends a command (probably after being commanded itself)
@@ -198,7 +254,7 @@ public class WorldObject implements Serializable
 	 * @param command
 	 * @param actor
 	 */
-	public int processCommand(String command, GameCharacter actor) {
+	public int processCommand(Command command, GameCharacter actor) {
 		return 0;
 	}
 	
@@ -209,7 +265,7 @@ public class WorldObject implements Serializable
 	 * @param command
 	 * @param actor
 	 */
-	public void listenToCommand(String command, PlayerCharacter actor) {
+	public void listenToCommand(Command command, PlayerCharacter actor) {
 	}
 
 	public void setLocation(WorldObject location) {
@@ -223,9 +279,9 @@ public class WorldObject implements Serializable
 	 */
 	public void moveToByID(int roomNo)
 	{
-		roomNo = Math.abs(roomNo);
-		if (roomNo < Game.getWorld().getRooms().size())
-			this.moveTo(Game.getWorld().getRooms().get(roomNo));
+		Room room = Game.getWorld().getRoom(Math.abs(roomNo));
+		if (room != null)
+			this.moveTo(room);
 		else
 			this.receiveMessage("That is not a valid room");
 	}
@@ -237,62 +293,154 @@ public class WorldObject implements Serializable
 	 */
 	public void moveToByName(String name)
 	{
-		for (Room place: Game.getWorld().getRooms())
-			if (place.getName().equals(name)){
-				this.moveTo(place);
-				return;
-			}
-		this.receiveMessage("That is not a valid room");
+		Room place = Game.getWorld().getRoomByName(name);
+		if (place != null)
+			this.moveTo(place);
+		else
+			this.receiveMessage("That is not a valid room");
 	}
 	public String describeDoors() {
 		return null;
 	}
 	
 	/**
-	 * Return an item in this object's contents by its name.
+	 * Return an item in this object's contents by its name, or failing that by one of its
+	 * synonyms, ignoring case.
 	 * @param name - the name of the WorldObject to return
 	 * @return - the WorldObject, or null if it can't be found
 	 */
 	public WorldObject getContentsByName(String name)
 	{
-	    for (WorldObject object: getContents()){
-	    	if (object.getName().toLowerCase().equals(name.toLowerCase()))
-	    		return object;
-	    }
-	    for (WorldObject object: getContents()){
-	    	if (object.getSynonyms() != null)
-		    	for (String text: object.getSynonyms()){
-		    		if (text.toLowerCase().equals(name.toLowerCase()))
-		    			return object;
-	    	}
-	    }
-	    return null;
+		return getContentsIndex().find(name.toLowerCase());
+	}
+	
+	/**
+	 * Return the object in this object's contents with the given name or synonym which understands
+	 * the verb. Objects with it as a name come before those with it as a synonym.
+	 * 
+	 * @param name - in lower case
+	 * @param verb - in lower case
+	 * @return - the WorldObject, or null if there is none
+	 */
+	public WorldObject getContentsByVerb(String name, String verb)
+	{
+		return getContentsIndex().find(name, verb);
+	}
+	
+	ContentsIndex getContentsIndex()
+	{
+		if (contentsIndex == null)
+			contentsIndex = new ContentsIndex(this);
+		return contentsIndex;
+	}
+	
+	/**
+	 * Called just before this object is renamed, or changes its synonyms or what it understands,
+	 * so that the index of its location can take it out from under its old names.
+	 */
+	protected void namesChanging()
+	{
+		ContentsIndex index = (location == null) ? null : location.contentsIndex;
+		if (index != null)
+			index.namesChanging(this);
+	}
+	
+	/**
+	 * Called just after this object has been renamed, or has changed its synonyms or what it
+	 * understands, so that the index of its location can put it under its new ones.
+	 */
+	protected void namesChanged()
+	{
+		ContentsIndex index = (location == null) ? null : location.contentsIndex;
+		if (index != null)
+			index.namesChanged(this);
 	}
 	
 	/**
-	 * Return a list of all doors in this object's contents
+	 * Return a read-only list of all doors in this object's contents. The list changes as doors
+	 * come and go, so copy it before moving doors out while going through it.
 	 */
 	public List<Door> getDoors()
 	{
-		List<Door> doors = new ArrayList<Door>();
-		
-		for (int i=0;i<getContents().size();i++)
-			if (getContents().get(i).getType() == Door.getStaticType()) doors.add((Door) getContents().get(i));
-		
-		return doors;
+		return getContentsIndex().getDoors();
 	}
 	
 	/**
-	 * Return a list of all GameCharacters in this object's contents
+	 * Return a read-only list of all GameCharacters in this object's contents.
 	 */
 	public List<GameCharacter> getGameCharacters()
 	{
-		List<GameCharacter> gcs = new ArrayList<GameCharacter>();
-		
-		for (int i=0;i<getContents().size();i++)
-			if (getContents().get(i).getType() == GameCharacter.getStaticType()) gcs.add((GameCharacter) getContents().get(i));
-		
-		return gcs;
+		return getContentsIndex().getGameCharacters();
+	}
+	
+	/**
+	 * Return a read-only list of all items in this object's contents.
+	 */
+	public List<Item> getItems()
+	{
+		return getContentsIndex().getItems();
+	}
+	
+	/**
+	 * Puts one object in the place of another in this object's contents, without either of them
+	 * entering or leaving, so nothing is told about it.
+	 * 
+	 * @param object - the object to replace
+	 * @param replacement
+	 * @return - false if the object was not in the contents
+	 */
+	public boolean replaceContents(WorldObject object, WorldObject replacement)
+	{
+		int i = getContents().indexOf(object);
+		if (i < 0)
+			return false;
+		contents.set(i, replacement);
+		if (contentsIndex != null)
+			contentsIndex.objectReplaced(object, replacement);
+		return true;
+	}
+	
+	/**
+	 * Adds the object to the contents and their index. The list of contents is made small, and
+	 * only when the first object enters.
+	 * 
+	 * @param object
+	 */
+	protected void addToContents(WorldObject object)
+	{
+		if (contents == null)
+			contents = new ArrayList<WorldObject>(2);
+		contents.add(object);
+		if (contentsIndex != null)
+			contentsIndex.objectAdded(object);
+	}
+	
+	/**
+	 * Removes the object from the contents and their index.
+	 * 
+	 * @param object
+	 */
+	protected void removeFromContents(WorldObject object)
+	{
+		if (contents == null)
+			return;
+		contents.remove(object);
+		if (contentsIndex != null)
+			contentsIndex.objectRemoved(object);
+	}
+	
+	/**
+	 * Gives back any room the list of contents has spare, once a world has been loaded.
+	 */
+	void trimContents()
+	{
+		if (contents instanceof ArrayList)
+		{
+			if (contents.isEmpty())
+				contents = null;
+			else
+				((ArrayList<WorldObject>) contents).trimToSize();
+		}
 	}
 	
 	/**
@@ -313,24 +461,78 @@ public class WorldObject implements Serializable
 	 */
 	public boolean moveTo(WorldObject location)
 	{
-		if (location != null)
+		if (location == null)
+			return false;
+		// Only fails if something else moved this object first, in which case it goes from there
+		while (!moveFrom(this.location, location))
+			;
+		return true;
+	}
+	
+	/**
+	 * Moves this object to the given target, but only if it is still where the caller last saw
+	 * it. Two players taking the same item both see it in the room, but only one gets it.
+	 * 
+	 * In direct mode the two containers are locked for the move, so the object is never in
+	 * both or neither of them.
+	 * 
+	 * @param from - where the object should be
+	 * @param location - where it is to go
+	 * @return - false if the object was not in from, or location is null
+	 */
+	public boolean moveFrom(WorldObject from, WorldObject location)
+	{
+		if (location == null)
+			return false;
+		long[] stamps = ContainerLocks.lock(from, location);
+		try
 		{
-			if (this.location != null)
-				this.location.objectExited(this);
-			this.location = location;
-			location.objectEntered(this);
+			if (this.location != from)
+				return false;
+			changeLocation(location);
 			return true;
+		} finally {
+			ContainerLocks.unlock(from, location, stamps);
 		}
-		return false;
 	}
+	
+	/**
+	 * Does a move once it is safe to: leaves the current location and enters the new one.
+	 * 
+	 * @param location
+	 */
+	protected void changeLocation(WorldObject location)
+	{
+		if (this.location != null)
+			this.location.objectExited(this);
+		this.location = location;
+		location.objectEntered(this);
+	}
+	
+	/**
+	 * Returns the contents as they are at one moment, to go through while other threads may be
+	 * moving things in and out. Use this rather than getContents to read another container.
+	 */
+	public List<WorldObject> readContents()
+	{
+		return ContainerLocks.read(this);
+	}
+	/**
+	 * Returns the contents. Use objectEntered and objectExited, or moveTo, to change them.
+	 */
 	public List<WorldObject> getContents() {
+		if (contents == null)
+			return Collections.emptyList();
 		return contents;
 	}
 	public void setContents(List<WorldObject> contents) {
 		this.contents = contents;
+		this.contentsIndex = null;
 	}
 	public void setSynonyms(List<String> synonyms) {
-		this.synonyms = synonyms;
+		namesChanging();
+		this.synonyms = (synonyms == null) ? Collections.<String>emptyList() : synonyms;
+		namesChanged();
 	}
 }
 
@@ -18,84 +18,161 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package uk.co.gundry.david.loamie.mud.world.command;
 
+import java.util.ArrayList;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
 
 import uk.co.gundry.david.loamie.mud.Game;
 import uk.co.gundry.david.loamie.mud.net.SocketThread;
 import uk.co.gundry.david.loamie.mud.world.Door;
+import uk.co.gundry.david.loamie.mud.world.GameCharacter;
 import uk.co.gundry.david.loamie.mud.world.Room;
 import uk.co.gundry.david.loamie.mud.world.WorldObject;
 
 public class AdminCommandInterpreter implements CommandInterpreter {
 
+	private static final AdminCommandInterpreter instance = new AdminCommandInterpreter();
+	
+	private AdminCommandInterpreter()
+	{
+	}
+	
+	public static AdminCommandInterpreter getInstance()
+	{
+		return instance;
+	}
+	
 	/**
 	 * A Command Interpreter specifically for administrator commands, being those that modify the base world
 	 * such as creating and editing rooms, and those that save the world state, and those that allow control
 	 * over players connected to the server.
 	 * 
-	 * @param command
-	 * @param connection
+	 * @param registry
 	 */
-	public boolean interpret(String command, SocketThread connection)
+	public void registerCommands(CommandRegistry registry)
 	{
-		if (command.toLowerCase().startsWith("goto "))
-		{
-			int roomNo = 0;
-			try {
-				int value = Integer.parseInt(command.substring(5));
-				roomNo = value;
-			} catch (NumberFormatException value) {
-				connection.getCharacter().receiveMessage("That is not a valid room");
+		registry.register("goto", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.startsWith("goto "))
+					return false;
+				int roomNo = 0;
+				try {
+					int value = Integer.parseInt(command.getArgument());
+					roomNo = value;
+				} catch (NumberFormatException value) {
+					connection.getCharacter().receiveMessage("That is not a valid room");
+					return true;
+				}
+				connection.getCharacter().moveToByID(roomNo);
 				return true;
 			}
-			connection.getCharacter().moveToByID(roomNo);
-			return true;
-		}
+		});
 		
-		if (command.toLowerCase().startsWith("create "))
-		{
-			create(command.substring(7),connection);
-			return true;
-		}
+		registry.register("create", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.startsWith("create "))
+					return false;
+				create(command.getArgument(),connection);
+				return true;
+			}
+		});
 		
-		if (command.toLowerCase().startsWith("edit "))
-		{
-			edit(command.substring(5),connection);
-			return true;
-		}
+		registry.register("edit", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.startsWith("edit "))
+					return false;
+				edit(command.getArgument(),connection);
+				return true;
+			}
+		});
 		
-		if (command.toLowerCase().startsWith("delete "))
-		{
-			delete(command.substring(7),connection);
-			return true;
-		}
+		registry.register("delete", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.startsWith("delete "))
+					return false;
+				delete(command.getArgument(),connection);
+				return true;
+			}
+		});
 		
-		if (command.toLowerCase().startsWith("eject "))
-		{
-			eject(command.substring(6),connection);
-			return true;
-		}
+		registry.register("eject", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.startsWith("eject "))
+					return false;
+				eject(command.getArgument(),connection);
+				return true;
+			}
+		});
 		
-		if (command.toLowerCase().equals("users"))
-		{
-			userLookUp(connection);
-			return true;
-		}
+		registry.register("zone", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.startsWith("zone "))
+					return false;
+				zone(command.getArgument(), connection);
+				return true;
+			}
+		});
 		
-		/*if (command.toLowerCase().equals("save"))
-		{
-			connection.getServerThread().saveWorldState();
-			return true;
-		}*/
+		registry.register("users", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.is("users"))
+					return false;
+				userLookUp(connection);
+				return true;
+			}
+		});
+		
+		registry.register("netstats", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.is("netstats"))
+					return false;
+				connection.sendMessage(connection.getServerThread().getOutputStats().describe());
+				return true;
+			}
+		});
 		
-		if (command.toLowerCase().equals("save"))
+		registry.register("save", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.is("save"))
+					return false;
+				connection.getServerThread().saveWorldStateToXML();
+				return true;
+			}
+		});
+	}
+	
+	/**
+	 * Puts the room the admin is in into the named zone, whose shouts it will then hear, or
+	 * into no zone if the name is 'none'.
+	 * 
+	 * @param name
+	 * @param thread
+	 */
+	private void zone(String name, SocketThread thread)
+	{
+		if (!(thread.getCharacter().getLocation() instanceof Room))
 		{
-			connection.getServerThread().saveWorldStateToXML();
-			return true;
+			thread.sendMessage("You are not in a room.");
+			return;
+		}
+		Room room = (Room) thread.getCharacter().getLocation();
+		if (name.equals("none"))
+		{
+			room.setZone(null);
+			thread.sendMessage(room.getName() + " is not in a zone now.");
+		} else {
+			room.setZone(name);
+			thread.sendMessage(room.getName() + " is in the zone " + name + " now.");
 		}
-		
-		return false;
 	}
 	
 	/**
@@ -132,9 +209,8 @@ public class AdminCommandInterpreter implements CommandInterpreter {
 				thread.sendMessage("That is not a valid room");
 				return;
 			}
-			if (creationTargetRoomNo < Game.getWorld().getRooms().size()){
-				creationTarget = Game.getWorld().getRooms().get(creationTargetRoomNo);
-			} else{
+			creationTarget = Game.getWorld().getRoom(creationTargetRoomNo);
+			if (creationTarget == null){
 				thread.sendMessage("That room does not exist!");
 				return;
 			}
@@ -158,7 +234,7 @@ public class AdminCommandInterpreter implements CommandInterpreter {
 			thread.sendMessage("Wrong syntax!");
 			return;
 		}
-		if (creationType == 2) Game.getWorld().getRooms().add(new Room(creationName, blueprint));
+		if (creationType == 2) Game.getWorld().addRoom(new Room(creationName, blueprint));
 		if (creationType == 3) thread.getCharacter().getLocation().objectEntered(new Door(creationName, blueprint, creationTarget));
 	}
 	
@@ -243,32 +319,37 @@ public class AdminCommandInterpreter implements CommandInterpreter {
 	 * this code is run. It interprets the arguments given to the 'delete' command and changes the
 	 * world accordingly.
 	 * 
-	 * This removes all objects in the room, gets rid of all doors, and marks the room for deletion.
-	 * In theory no one can reenter the room without admin powers, and it will be skipped on the next save.
+	 * This gets rid of all doors in the room, moves everything else in it to Limbo, and takes the room
+	 * out of the world so that its id can be used again. Doors elsewhere which led to it lead nowhere.
 	 * 
 	 * @param blueprint
 	 */
 	public void delete(String blueprint, SocketThread thread)
 	{
 		if (blueprint.equals("room")){
-			if (thread.getCharacter().getLocation() != Game.getWorld().getRooms().get(0))
+			Room limbo = Game.getWorld().getRoom(0);
+			if (thread.getCharacter().getLocation() != limbo)
 			{ // You really don't want to delete Limbo
 				Room roomToDelete = (Room) thread.getCharacter().getLocation();
-				for (Door door: roomToDelete.getDoors())
+				for (Door door: new ArrayList<Door>(roomToDelete.getDoors()))
 				{
 					roomToDelete.objectExited(door);
 				}
-				roomToDelete.ejectContents(Game.getWorld().getRooms().get(0));
+				for (WorldObject object: new ArrayList<WorldObject>(roomToDelete.getContents()))
+					object.moveTo(limbo);
 
-				roomToDelete.setName("DELETE" + roomToDelete.getName());
-				//this.thread.getServerThread().getGame().getWorld().getRooms().remove(roomToDelete);
+				Game.getWorld().removeRoom(roomToDelete);
 				return;
 			}
 		}		
 		else {
 			WorldObject object = thread.getCharacter().getLocation().getContentsByName(blueprint);
 			if (object != null)
+			{
 				thread.getCharacter().getLocation().objectExited(object);
+				if (object instanceof GameCharacter)
+					Game.getWorld().removeCharacter((GameCharacter) object);
+			}
 			return;
 			}		
 	}
@@ -302,17 +383,17 @@ public class AdminCommandInterpreter implements CommandInterpreter {
 			thread.sendMessage("That is not a valid room");
 			return;
 		}
-		target = Math.abs(target);
-		if (target >= Game.getWorld().getRooms().size()){
+		Room targetRoom = Game.getWorld().getRoom(Math.abs(target));
+		if (targetRoom == null){
 			thread.sendMessage("That is not a valid room");
 			return;
 		}
 		
 		if (victimName.equals("all"))
-			thread.getCharacter().getLocation().ejectContents(Game.getWorld().getRooms().get(target));
+			thread.getCharacter().getLocation().ejectContents(targetRoom);
 		else 
 			if (thread.getCharacter().getLocation().getContentsByName(victimName) != null)
-				thread.getCharacter().getLocation().getContentsByName(victimName).moveTo(Game.getWorld().getRooms().get(target));
+				thread.getCharacter().getLocation().getContentsByName(victimName).moveTo(targetRoom);
 			else thread.sendMessage("Cannot find " + victimName);
 	}
 	
@@ -320,9 +401,12 @@ public class AdminCommandInterpreter implements CommandInterpreter {
 	{
 		thread.sendMessage(thread.getServerThread().countConnections() + " / " + Game.getMaxConnections() + " users connected.");
 		thread.sendMessage(thread.getServerThread().countLogins() + " users currently playing.");
-		thread.sendMessage("IP Address       Username");
-		for (SocketThread user: thread.getServerThread().getThreads()){
-			thread.sendMessage(user.getIP() + "		" + user.getCharacter().getName());
+		thread.sendMessage("IP Address       Username       Output");
+		for (SocketThread user: thread.getServerThread().getSessions()){
+			if (user.loggedIn())
+				thread.sendMessage(user.getIP() + "		" + user.getCharacter().getName() + "		" + user.describeCompression());
+			else
+				thread.sendMessage(user.getIP() + "		(not logged in)		" + user.describeCompression());
 		}
 	}
 	
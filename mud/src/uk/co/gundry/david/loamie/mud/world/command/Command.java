@@ -0,0 +1,177 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.world.command;
+
+import java.util.Arrays;
+
+/**
+ * A command typed by a player, or run by a script, parsed once so that everything which
+ * tries to understand it can share the work: the lower case version, the verb and where
+ * each word starts and ends.
+ * 
+ * The verb is the first word of the command, in lower case, except that the emote
+ * commands '*' and '/' are verbs on their own and need no space after them.
+ * 
+ * Commands never change once parsed, so they may be passed between threads freely.
+ * 
+ * @author David Gundry
+ */
+public final class Command
+{
+	private final String text;
+	private final String lowerCase;
+	private final String verb;
+	/**
+	 * The start and end of each word: word i runs from spans[2*i] to spans[2*i+1].
+	 */
+	private final int[] spans;
+	
+	private Command(String text, String lowerCase)
+	{
+		this.text = text;
+		this.lowerCase = lowerCase;
+		
+		int[] spans = new int[8];
+		int words = 0;
+		int i = 0;
+		int length = lowerCase.length();
+		while (i < length)
+		{
+			while (i < length && Character.isWhitespace(lowerCase.charAt(i)))
+				i++;
+			if (i == length)
+				break;
+			int start = i;
+			while (i < length && !Character.isWhitespace(lowerCase.charAt(i)))
+				i++;
+			if (2 * words == spans.length)
+				spans = Arrays.copyOf(spans, spans.length * 2);
+			spans[2 * words] = start;
+			spans[2 * words + 1] = i;
+			words++;
+		}
+		this.spans = Arrays.copyOf(spans, 2 * words);
+		
+		if (lowerCase.startsWith("*") || lowerCase.startsWith("/"))
+			verb = lowerCase.substring(0, 1);
+		else if (words > 0 && spans[0] == 0)
+			verb = lowerCase.substring(0, spans[1]);
+		else
+			verb = "";
+	}
+	
+	/**
+	 * Parses a command.
+	 * 
+	 * @param text - the command as it was typed
+	 */
+	public static Command parse(String text)
+	{
+		return new Command(text, text.toLowerCase());
+	}
+	
+	/**
+	 * Returns the command as it was typed.
+	 */
+	public String getText()
+	{
+		return text;
+	}
+	
+	/**
+	 * Returns the command in lower case.
+	 */
+	public String getLowerCase()
+	{
+		return lowerCase;
+	}
+	
+	/**
+	 * Returns the verb, in lower case. It is empty if the command starts with a space.
+	 */
+	public String getVerb()
+	{
+		return verb;
+	}
+	
+	/**
+	 * Returns what follows the verb and the space after it, as it was typed.
+	 */
+	public String getArgument()
+	{
+		int start = (verb.length() == 1 && (verb.equals("*") || verb.equals("/"))) ? 1 : verb.length() + 1;
+		if (start >= text.length())
+			return "";
+		return text.substring(start);
+	}
+	
+	/**
+	 * Returns true if the command is the given text, ignoring case.
+	 * 
+	 * @param lowerCaseText
+	 */
+	public boolean is(String lowerCaseText)
+	{
+		return lowerCase.equals(lowerCaseText);
+	}
+	
+	/**
+	 * Returns true if the command starts with the given text, ignoring case.
+	 * 
+	 * @param lowerCasePrefix
+	 */
+	public boolean startsWith(String lowerCasePrefix)
+	{
+		return lowerCase.startsWith(lowerCasePrefix);
+	}
+	
+	/**
+	 * Returns the number of words in the command.
+	 */
+	public int getWordCount()
+	{
+		return spans.length / 2;
+	}
+	
+	/**
+	 * Returns a word of the command, in lower case.
+	 * 
+	 * @param index - from 0, the verb
+	 */
+	public String getWord(int index)
+	{
+		return lowerCase.substring(spans[2 * index], spans[2 * index + 1]);
+	}
+	
+	/**
+	 * Returns the command cut short to the given number of characters.
+	 * 
+	 * @param length
+	 */
+	public Command truncate(int length)
+	{
+		return new Command(text.substring(0, length), lowerCase.substring(0, length));
+	}
+	
+	public String toString()
+	{
+		return text;
+	}
+}
@@ -0,0 +1,35 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.world.command;
+
+import uk.co.gundry.david.loamie.mud.net.SocketThread;
+
+public interface CommandHandler {
+
+	/**
+	 * Is called with a command whose verb this handler was registered for. It returns true if it
+	 * understands the command, otherwise it returns false and the command is offered to the next
+	 * handler for the verb.
+	 * 
+	 * @param command
+	 * @param connection
+	 */
+	public boolean handle(Command command, SocketThread connection);
+}
@@ -18,18 +18,14 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package uk.co.gundry.david.loamie.mud.world.command;
 
-import uk.co.gundry.david.loamie.mud.net.SocketThread;
-
 public interface CommandInterpreter {
 
 	/**
-	 * Is called with a command received from a player. A Command Interpreter checks for basic and system
-	 * commands. It does not attempt to understand the various commands that items could take. It needs to
-	 * be passed the SocketThread so it can execute the commands. It returns true if it understands the
-	 * command, otherwise it returns false.
+	 * Is called once, when the server starts, to register handlers for the commands this interpreter
+	 * understands. A Command Interpreter handles basic and system commands. It does not attempt to
+	 * understand the various commands that items could take.
 	 * 
-	 * @param command
-	 * @param connection
+	 * @param registry
 	 */
-	public boolean interpret(String command, SocketThread connection);
+	public void registerCommands(CommandRegistry registry);
 }
@@ -0,0 +1,150 @@
+/*
+Loamie - A MUD Engine
+Copyright (C) 2012  David Gundry, Adam Gundry
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package uk.co.gundry.david.loamie.mud.world.command;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import uk.co.gundry.david.loamie.mud.net.SocketThread;
+
+/**
+ * Looks up the handlers for a command by its verb, so that working out what a command
+ * means costs the same however many commands there are.
+ * 
+ * There are two registries, filled in by the command interpreters when this class is
+ * loaded: one for players who are logged in, and one for connections which are not. They
+ * are never changed afterwards, so any number of threads may dispatch commands at once.
+ * 
+ * The registry also knows which verbs stay inside the room the player is in, so that
+ * commands in different rooms can be carried out at the same time. A verb is only taken
+ * to stay in the room if every handler for it was registered with registerLocal.
+ * 
+ * @author David Gundry
+ */
+public final class CommandRegistry
+{
+	private static final CommandRegistry gameCommands = new CommandRegistry();
+	private static final CommandRegistry consoleCommands = new CommandRegistry();
+	private static final CommandHandler[] NONE = new CommandHandler[0];
+	
+	static
+	{
+		AdminCommandInterpreter.getInstance().registerCommands(gameCommands);
+		PlayerCommandInterpreter.getInstance().registerCommands(gameCommands);
+		UnLoggedInCommandInterpreter.getInstance().registerCommands(consoleCommands);
+	}
+	
+	/**
+	 * The handlers for each verb, in the order they were registered.
+	 */
+	private final Map<String, CommandHandler[]> handlers = new HashMap<String, CommandHandler[]>();
+	
+	/**
+	 * The verbs with a handler which may reach outside the player's room.
+	 */
+	private final Set<String> leavesRoom = new HashSet<String>();
+	
+	private CommandRegistry()
+	{
+	}
+	
+	/**
+	 * Returns the commands understood from players who are logged in.
+	 */
+	public static CommandRegistry getGameCommands()
+	{
+		return gameCommands;
+	}
+	
+	/**
+	 * Returns the commands understood from connections which have not logged in.
+	 */
+	public static CommandRegistry getConsoleCommands()
+	{
+		return consoleCommands;
+	}
+	
+	/**
+	 * Adds a handler for commands with the given verb. Handlers registered earlier for the
+	 * same verb get the first chance to handle them.
+	 * 
+	 * @param verb - in lower case
+	 * @param handler
+	 */
+	void register(String verb, CommandHandler handler)
+	{
+		add(verb, handler);
+		leavesRoom.add(verb);
+	}
+	
+	/**
+	 * Adds a handler for commands with the given verb which only ever reads and changes things
+	 * in the player's room: the room itself, what is in it, and what they carry. Anything which
+	 * moves a character, or talks to players elsewhere, must be registered with register.
+	 * 
+	 * @param verb - in lower case
+	 * @param handler
+	 */
+	void registerLocal(String verb, CommandHandler handler)
+	{
+		add(verb, handler);
+	}
+	
+	private void add(String verb, CommandHandler handler)
+	{
+		CommandHandler[] existing = handlers.get(verb);
+		if (existing == null)
+			existing = NONE;
+		CommandHandler[] updated = Arrays.copyOf(existing, existing.length + 1);
+		updated[existing.length] = handler;
+		handlers.put(verb, updated);
+	}
+	
+	/**
+	 * Returns true if the handlers for the command's verb, if there are any, stay inside the
+	 * player's room. A command none of them understands may still go on to an object it names.
+	 * 
+	 * @param command
+	 */
+	public boolean isLocal(Command command)
+	{
+		return !leavesRoom.contains(command.getVerb());
+	}
+	
+	/**
+	 * Offers the command to the handlers for its verb. Returns true if one of them understood it.
+	 * 
+	 * @param command
+	 * @param connection
+	 */
+	public boolean dispatch(Command command, SocketThread connection)
+	{
+		CommandHandler[] candidates = handlers.get(command.getVerb());
+		if (candidates == null)
+			return false;
+		for (CommandHandler handler: candidates)
+			if (handler.handle(command, connection))
+				return true;
+		return false;
+	}
+}
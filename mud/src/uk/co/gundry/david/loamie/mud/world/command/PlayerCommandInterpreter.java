@@ -18,97 +18,166 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package uk.co.gundry.david.loamie.mud.world.command;
 
+import java.util.List;
+
 import uk.co.gundry.david.loamie.mud.net.SocketThread;
+import uk.co.gundry.david.loamie.mud.world.Door;
 
 public class PlayerCommandInterpreter implements CommandInterpreter {
 
+	private static final PlayerCommandInterpreter instance = new PlayerCommandInterpreter();
+	private static final Command USE = Command.parse("use");
+	
+	private PlayerCommandInterpreter()
+	{
+	}
+	
+	public static PlayerCommandInterpreter getInstance()
+	{
+		return instance;
+	}
 	
-	public boolean interpret(String command, SocketThread connection)
+	public void registerCommands(CommandRegistry registry)
 	{
-		if (command.toLowerCase().startsWith("say "))
-		{
-			connection.getCharacter().say(command.substring(4));
-			return true;
-		}
+		registry.registerLocal("say", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.startsWith("say "))
+					return false;
+				connection.getCharacter().say(command.getArgument());
+				return true;
+			}
+		});
 		
-		if (command.toLowerCase().startsWith("shout "))
-		{
-			connection.getCharacter().shout(command.substring(6));
-			return true;
-		}
-
-		if (command.startsWith("*"))
-		{
-			connection.getCharacter().rpAction(command.substring(1));
-			return true;
-		}
-
-		if (command.startsWith("/"))
-		{
-			connection.getCharacter().ownerlessRpAction(command.substring(1));
-			return true;
-		}
+		// Heard through the whole zone
+		registry.register("shout", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.startsWith("shout "))
+					return false;
+				connection.getCharacter().shout(command.getArgument());
+				return true;
+			}
+		});
 		
-		if (command.toLowerCase().equals("look") || command.toLowerCase().equals("look around"))
-		{
-			connection.getCharacter().look();
-			return true;
-		}
+		registry.registerLocal("*", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				connection.getCharacter().rpAction(command.getArgument());
+				return true;
+			}
+		});
 		
-		if (command.toLowerCase().equals("door") || command.toLowerCase().equals("doors") || command.toLowerCase().equals("look doors") || command.toLowerCase().equals("look door") || command.toLowerCase().equals("look at door") || command.toLowerCase().equals("look at doors") || command.toLowerCase().equals("look at the door") || command.toLowerCase().equals("look at the doors"))
-		{
-			connection.getCharacter().receiveMessage(connection.getCharacter().getLocation().describeDoors());
-			return true;
-		}
+		registry.registerLocal("/", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				connection.getCharacter().ownerlessRpAction(command.getArgument());
+				return true;
+			}
+		});
 		
-		if (command.toLowerCase().equals("use door") || command.toLowerCase().equals("use the door"))
-		{
-			if (connection.getCharacter().getLocation().getDoors().size() == 1){
-				connection.getCharacter().getLocation().getDoors().get(0).interpretCommand("use", connection.getCharacter());
+		registry.registerLocal("look", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (command.is("look") || command.is("look around"))
+				{
+					connection.getCharacter().look();
+					return true;
+				}
+				if (command.is("look doors") || command.is("look door") || command.is("look at door") || command.is("look at doors") || command.is("look at the door") || command.is("look at the doors"))
+				{
+					describeDoors(connection);
+					return true;
+				}
+				if (command.startsWith("look at "))
+				{
+					connection.getCharacter().objectLook(command.getLowerCase().substring(8));
+					return true;
+				}
+				if (command.startsWith("look "))
+				{
+					connection.getCharacter().objectLook(command.getLowerCase().substring(5));
+					return true;
+				}
+				return false;
 			}
-			else
-				connection.getCharacter().receiveMessage("Which door you mean?");
-			return true;
-		}
+		});
 		
-		if (command.toLowerCase().startsWith("look at "))
-		{
-			connection.getCharacter().objectLook(command.substring(8).toLowerCase());
-			return true;
-		}
+		CommandHandler doors = new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.is("door") && !command.is("doors"))
+					return false;
+				describeDoors(connection);
+				return true;
+			}
+		};
+		registry.registerLocal("door", doors);
+		registry.registerLocal("doors", doors);
 		
-		if (command.toLowerCase().startsWith("look "))
-		{
-			connection.getCharacter().objectLook(command.substring(5).toLowerCase());
-			return true;
-		}
-
-		if (command.toLowerCase().equals("me"))
-		{
-			connection.getCharacter().receiveMessage(connection.getCharacter().getName() + "\n" + connection.getCharacter().getDescription());
-			return true;
-		}
+		registry.register("use", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.is("use door") && !command.is("use the door"))
+					return false;
+				List<Door> doors = connection.getCharacter().getLocation().getDoors();
+				if (doors.size() == 1){
+					doors.get(0).interpretCommand(USE, connection.getCharacter());
+				}
+				else
+					connection.getCharacter().receiveMessage("Which door you mean?");
+				return true;
+			}
+		});
 		
-		if (command.toLowerCase().equals("stat") || command.toLowerCase().equals("stats"))
-		{
-			connection.getCharacter().receiveMessage(connection.getCharacter().characterStats());
-			return true;
-		}
+		registry.registerLocal("me", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.is("me"))
+					return false;
+				connection.getCharacter().receiveMessage(connection.getCharacter().getName() + "\n" + connection.getCharacter().getDescription());
+				return true;
+			}
+		});
 		
-		if (command.toLowerCase().equals("inven"))
-		{
-			connection.getCharacter().receiveMessage(connection.getCharacter().describeContents());
-
-			return true;
-		}
+		CommandHandler stats = new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.is("stat") && !command.is("stats"))
+					return false;
+				connection.getCharacter().receiveMessage(connection.getCharacter().characterStats());
+				return true;
+			}
+		};
+		registry.registerLocal("stat", stats);
+		registry.registerLocal("stats", stats);
 		
-		if (command.toLowerCase().equals("sheet") || command.toLowerCase().equals("character sheet") || command.toLowerCase().equals("character"))
-		{
-			connection.getCharacter().receiveMessage(connection.getCharacter().characterSheet());
-			return true;
-		}
+		registry.registerLocal("inven", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.is("inven"))
+					return false;
+				connection.getCharacter().receiveMessage(connection.getCharacter().describeContents());
+				return true;
+			}
+		});
 		
-		return false;
+		CommandHandler sheet = new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.is("sheet") && !command.is("character sheet") && !command.is("character"))
+					return false;
+				connection.getCharacter().receiveMessage(connection.getCharacter().characterSheet());
+				return true;
+			}
+		};
+		registry.registerLocal("sheet", sheet);
+		registry.registerLocal("character", sheet);
+	}
+	
+	private void describeDoors(SocketThread connection)
+	{
+		connection.getCharacter().receiveMessage(connection.getCharacter().getLocation().describeDoors());
 	}
 	
 }
@@ -22,72 +22,118 @@ import uk.co.gundry.david.loamie.mud.Game;
 import uk.co.gundry.david.loamie.mud.net.SocketThread;
 import uk.co.gundry.david.loamie.mud.world.GameCharacter;
 import uk.co.gundry.david.loamie.mud.world.PlayerCharacter;
-import uk.co.gundry.david.loamie.mud.world.Room;
 
 public class UnLoggedInCommandInterpreter implements CommandInterpreter {
 
+	private static final UnLoggedInCommandInterpreter instance = new UnLoggedInCommandInterpreter();
+	
+	private UnLoggedInCommandInterpreter()
+	{
+	}
+	
+	public static UnLoggedInCommandInterpreter getInstance()
+	{
+		return instance;
+	}
+	
 	/**
 	 * Interprets commands for users who are connected to the server, but do not have a character associated with them,
 	 * thus they are not logged in.
 	 * 
-	 * @param command
+	 * @param registry
+	 */
+	public void registerCommands(CommandRegistry registry)
+	{
+		registry.register("login", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.getText().startsWith("login "))
+					return false;
+				login(command.getArgument(), connection);
+				return true;
+			}
+		});
+		
+		registry.register("restore", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.is("restore"))
+					return false;
+				connection.sendMessage(connection.getServerThread().restoreWorldStateFromXML());
+				return true;
+			}
+		});
+		
+		registry.register("shutdown", new CommandHandler() {
+			public boolean handle(Command command, SocketThread connection)
+			{
+				if (!command.is("shutdown"))
+					return false;
+				Runtime.getRuntime().exit(0);
+				return true;
+			}
+		});
+	}
+	
+	/**
+	 * Logs the connection in as the character with the given name, creating the character if
+	 * there is not one already.
+	 * 
+	 * @param name
 	 * @param connection
 	 */
-	public boolean interpret(String command, SocketThread connection)
+	private void login(String name, SocketThread connection)
 	{
-		if (command.startsWith("login "))
+		if (Game.getWorld().getRoom(0) != null)
 		{
-			if (Game.getWorld().getRooms().size() > 0)
+			// Held so that two sessions cannot both take the same character
+			synchronized (Game.getWorld())
 			{
-				for (Room room: Game.getWorld().getRooms())
+				if (Game.getWorld().isCharacterOnline(name))
 				{
-					if (room.getContentsByName(command.substring(6)) != null){
-						if (room.getContentsByName(command.substring(6)).getType() == GameCharacter.getStaticType());
-						{
-							connection.setCharacter(new PlayerCharacter((GameCharacter)room.getContentsByName(command.substring(6))));
-							connection.sendMessage("A character has been found by that name.");
-							if (connection.getCharacter().getLocation() == Game.getWorld().getRooms().get(0)){
-								connection.getCharacter().moveTo(connection.getCharacter().getLastRoom());
-								connection.getCharacter().playerConnected(connection);
-								return true;
-							} else{
-								connection.logMessage(connection.getCharacter().getName() + " arrived in an unexpected location. Did the server not shut down properly?");
-								connection.getCharacter().playerConnected(connection);
-								return true;
-							}
-						}
-					}	
+					connection.sendMessage("That character is already playing.");
+					return;
+				}
+				GameCharacter found = Game.getWorld().getCharacterByName(name);
+				if (found != null){
+					connection.setCharacter(takeControl(found));
+					connection.sendMessage("A character has been found by that name.");
+					if (connection.getCharacter().getLocation() == Game.getWorld().getRoom(0)){
+						connection.getCharacter().moveTo(connection.getCharacter().getLastRoom());
+						connection.getCharacter().playerConnected(connection);
+						return;
+					} else{
+						connection.logMessage(connection.getCharacter().getName() + " arrived in an unexpected location. Did the server not shut down properly?");
+						connection.getCharacter().playerConnected(connection);
+						return;
+					}
 				}
 				
-				connection.setCharacter(Game.createPlayerCharacter(command.substring(6), "As yet completely undescribed and unremarkable."));
+				connection.setCharacter(Game.createPlayerCharacter(name, "As yet completely undescribed and unremarkable."));
 				connection.sendMessage("A new character has been created.");
 				connection.getCharacter().playerConnected(connection);
-				return true;
+				return;
 			}
-			connection.sendMessage("The server has not got a world loaded.");
-			Game.logMessage("Player tried to connect to empty world!");
-			return true;
-		}
-		
-		/*if (command.toLowerCase().equals("restore"))
-		{
-			connection.sendMessage(connection.getServerThread().restoreWorldState());
-			return true;
-		}*/
-		
-		if (command.toLowerCase().equals("restore"))
-		{
-			connection.sendMessage(connection.getServerThread().restoreWorldStateFromXML());
-			return true;
 		}
-		
-		if (command.toLowerCase().equals("shutdown"))
-		{
-			Runtime.getRuntime().exit(0);
-			return true;
-		}
-		
-		return false;
+		connection.sendMessage("The server has not got a world loaded.");
+		Game.logMessage("Player tried to connect to empty world!");
+	}
+	
+	/**
+	 * Returns a player character for the character, which takes its place in the world. A character
+	 * that has been played before already is one; one loaded from a save is copied.
+	 * 
+	 * @param character
+	 */
+	private PlayerCharacter takeControl(GameCharacter character)
+	{
+		if (character instanceof PlayerCharacter)
+			return (PlayerCharacter) character;
+		PlayerCharacter player = new PlayerCharacter(character);
+		if (character.getLocation() != null)
+			character.getLocation().replaceContents(character, player);
+		Game.getWorld().addCharacter(player);
+		return player;
 	}
 	
 }
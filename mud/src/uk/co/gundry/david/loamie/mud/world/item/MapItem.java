@@ -21,6 +21,7 @@ package uk.co.gundry.david.loamie.mud.world.item;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import org.w3c.dom.Element;
@@ -30,8 +31,10 @@ import org.w3c.dom.NodeList;
 import uk.co.gundry.david.loamie.mud.Game;
 import uk.co.gundry.david.loamie.mud.world.GameCharacter;
 import uk.co.gundry.david.loamie.mud.world.Item;
+import uk.co.gundry.david.loamie.mud.world.LoadPool;
 import uk.co.gundry.david.loamie.mud.world.PlayerCharacter;
 import uk.co.gundry.david.loamie.mud.world.WorldObject;
+import uk.co.gundry.david.loamie.mud.world.command.Command;
 
 public class MapItem extends Item implements Serializable {
 	
@@ -55,20 +58,27 @@ public class MapItem extends Item implements Serializable {
 		// TODO Auto-generated constructor stub
 	}
 
-	public int interpretCommand(String text, GameCharacter actor)
+	public Collection<String> getVerbs()
 	{
-		if (text.toLowerCase().equals("use")){
+		Collection<String> verbs = super.getVerbs();
+		verbs.add("use");
+		return verbs;
+	}
+	
+	public int interpretCommand(Command command, GameCharacter actor)
+	{
+		if (command.is("use")){
 			if (this.getLocation() == actor)
-				this.processCommand(text, actor);
+				this.processCommand(command, actor);
 			return 1;
 		}
 		
-		if (text.toLowerCase().equals("pick up") || text.toLowerCase().equals("get") || text.toLowerCase().equals("grab") || text.toLowerCase().equals("take")){
-			this.processCommand(text, actor);
+		if (command.is("pick up") || command.is("get") || command.is("grab") || command.is("take")){
+			this.processCommand(command, actor);
 			return 1;
 		} else 
-		if (text.toLowerCase().equals("drop") || text.toLowerCase().equals("put down") || text.toLowerCase().equals("lose")){
-			this.processCommand(text, actor);
+		if (command.is("drop") || command.is("put down") || command.is("lose")){
+			this.processCommand(command, actor);
 			return 1;
 		} else
 			return 0;
@@ -85,21 +95,21 @@ public class MapItem extends Item implements Serializable {
 			actor.receiveMessage((i+1) + " " + targets[i]);
 	}
 	
-	public int processCommand(String command, GameCharacter actor)
+	public int processCommand(Command command, GameCharacter actor)
 	{
-		if (command.toLowerCase().equals("use")){
+		if (command.is("use")){
 			actor.receiveMessage("You are using the map.");
 			showArt(actor);
 			showHelp(actor);
 			actor.setListener(this);
 			return 1;
-		} else if (command.toLowerCase().equals("pick up") || command.toLowerCase().equals("get") || command.toLowerCase().equals("grab") || command.toLowerCase().equals("take")){
+		} else if (command.is("pick up") || command.is("get") || command.is("grab") || command.is("take")){
 			if (this.getLocation() != actor)
-				this.moveTo(actor);
+				this.moveFrom(actor.getLocation(), actor);
 			return 1;
-		} else if (command.toLowerCase().equals("drop") || command.toLowerCase().equals("put down") || command.toLowerCase().equals("lose")){
+		} else if (command.is("drop") || command.is("put down") || command.is("lose")){
 			if (this.getLocation() == actor){
-				this.moveTo(actor.getLocation());
+				this.moveFrom(actor, actor.getLocation());
 			} else
 				actor.receiveMessage("You can\'t drop something you aren\'t carrying!");
 				return 1;
@@ -107,12 +117,12 @@ public class MapItem extends Item implements Serializable {
 		return 0;
 	}
 	
-	public void listenToCommand(String command, PlayerCharacter actor) {
-		if (command.toLowerCase().equals("stop") || command.toLowerCase().equals("drop") || command.toLowerCase().equals("put down") || command.toLowerCase().equals("lose") || command.toLowerCase().equals("end") || command.toLowerCase().equals("exit") || command.toLowerCase().equals("quit")){
+	public void listenToCommand(Command command, PlayerCharacter actor) {
+		if (command.is("stop") || command.is("drop") || command.is("put down") || command.is("lose") || command.is("end") || command.is("exit") || command.is("quit")){
 			actor.receiveMessage("You stop using the map.");
 			actor.setListener(null);
 			return;
-		} else if (command.toLowerCase().equals("help") || command.toLowerCase().equals("look") || command.toLowerCase().equals("view") || command.toLowerCase().equals("places") || command.toLowerCase().equals("map") || command.toLowerCase().equals("look at") || command.toLowerCase().equals("show")){
+		} else if (command.is("help") || command.is("look") || command.is("view") || command.is("places") || command.is("map") || command.is("look at") || command.is("show")){
 			showArt(actor);
 			showHelp(actor);
 			return;
@@ -120,7 +130,7 @@ public class MapItem extends Item implements Serializable {
 		
 		int number;
 		try {
-			number = Integer.parseInt(command);
+			number = Integer.parseInt(command.getText());
 		} catch (NumberFormatException ex) {
 			actor.receiveMessage("The map does not understand that command.");
 			return;
@@ -147,9 +157,7 @@ public class MapItem extends Item implements Serializable {
     	Element itemElement = (Element)itemList.item(0);
     	if (itemElement != null)
 		{
-    	NodeList childItemList = itemElement.getChildNodes();
-    	
-    	for(int j=0; j<childItemList.getLength(); j++){
+    	for(int j=0; j<itemList.getLength(); j++){
     		if (itemList.item(j) != null)
     		{
         		Node firstItemNode = itemList.item(j);
@@ -224,7 +232,9 @@ public class MapItem extends Item implements Serializable {
                     }
                     
                     
-                    newItems.add(new MapItem(itemName,itemDesc,itemArt,newTargets,newSyns));
+                    for (int l=0; l<newTargets.length; l++)
+                    	newTargets[l] = LoadPool.share(newTargets[l]);
+                    newItems.add(new MapItem(LoadPool.share(itemName),LoadPool.share(itemDesc),LoadPool.share(itemArt),newTargets,LoadPool.share(newSyns)));
 	                }
 	        	}
         	}